@@ -0,0 +1,95 @@
+package webreduce.benchmarks;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import webreduce.cleaning.Analysis;
+import webreduce.cleaning.AnalysisContext.TermSink;
+import webreduce.cleaning.CustomAnalyzer;
+import webreduce.data.Dataset;
+
+/* analysis of the titles and page titles of synthetic tables, per text */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalysisBenchmark {
+
+	@Param({ "1000" })
+	public int tables;
+
+	private final Analyzer analyzer = new CustomAnalyzer();
+	private String[] texts;
+	private int next = 0;
+	private int length = 0;
+
+	private final TermSink sink = new TermSink() {
+		@Override
+		public void term(char[] chars, int n) {
+			length += n;
+		}
+	};
+
+	@Setup
+	public void setup() {
+		List<String> t = new ArrayList<String>();
+		for (Dataset ds : new SyntheticCorpus(42).tables(tables)) {
+			t.add(ds.title);
+			t.add(ds.pageTitle);
+		}
+		texts = t.toArray(new String[t.size()]);
+	}
+
+	private String nextText() {
+		String s = texts[next];
+		next = (next + 1) % texts.length;
+		return s;
+	}
+
+	/* what Indexer.analyze did before the analysis context */
+	@Benchmark
+	public String[] stringReader() throws IOException {
+		List<String> result = new ArrayList<String>();
+		TokenStream stream = analyzer.tokenStream(null, new StringReader(
+				nextText()));
+		stream.reset();
+		while (stream.incrementToken())
+			result.add(stream.getAttribute(CharTermAttribute.class).toString());
+		stream.end();
+		stream.close();
+		return result.toArray(new String[] {});
+	}
+
+	@Benchmark
+	public String[] contextTerms() {
+		return Analysis.context().terms(analyzer, nextText());
+	}
+
+	@Benchmark
+	public int contextSink() {
+		length = 0;
+		Analysis.context().analyze(analyzer, nextText(), sink);
+		return length;
+	}
+
+}
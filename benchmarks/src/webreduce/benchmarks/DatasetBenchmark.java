@@ -0,0 +1,170 @@
+package webreduce.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import webreduce.data.Dataset;
+import webreduce.data.DatasetCodec;
+import webreduce.data.DatasetProjection;
+import webreduce.data.TypedColumn;
+import webreduce.data.TypedColumns;
+import webreduce.typing.DataType;
+import webreduce.typing.Types;
+
+/*
+ * deserialization of corpus lines, complete and projected to the header row, and of stored full
+ * results in the binary format of DatasetCodec, and the typed numeric columns of tables
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatasetBenchmark {
+
+	@Param({ "1000" })
+	public int tables;
+
+	private String[] json;
+	private byte[][] binary;
+	private byte[][] compressed;
+	private byte[][] typed;
+	private Dataset[] datasets;
+	private final DatasetProjection headerRow = DatasetProjection
+			.of(DatasetProjection.Field.HEADER_ROW);
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		List<Dataset> ds = new SyntheticCorpus(42).tables(tables);
+		datasets = ds.toArray(new Dataset[ds.size()]);
+		json = new String[ds.size()];
+		binary = new byte[ds.size()][];
+		compressed = new byte[ds.size()][];
+		typed = new byte[ds.size()][];
+		for (int i = 0; i < json.length; i++) {
+			json[i] = ds.get(i).toJson();
+			binary[i] = DatasetCodec.encode(ds.get(i), false);
+			compressed[i] = DatasetCodec.encode(ds.get(i), true);
+		}
+		// typed like the indexer's preprocessing does, then with the typed columns cached
+		for (int i = 0; i < json.length; i++) {
+			Dataset d = datasets[i];
+			d.columnTypes = new String[d.relation.length];
+			for (int c = 0; c < d.relation.length; c++)
+				d.columnTypes[c] = Types.columnType(d.relation[c], 1,
+						d.relation[c].length).Name;
+			typed[i] = DatasetCodec.encode(d, false, true);
+		}
+	}
+
+	private int nextIndex() {
+		int i = next;
+		next = (next + 1) % json.length;
+		return i;
+	}
+
+	private String nextJson() {
+		return json[nextIndex()];
+	}
+
+	@Benchmark
+	public Dataset fromJson() {
+		return Dataset.fromJson(nextJson());
+	}
+
+	@Benchmark
+	public void fromJsonHeaderRow(Blackhole bh) {
+		bh.consume(Dataset.fromJson(nextJson(), headerRow));
+	}
+
+	@Benchmark
+	public String toJson() {
+		return datasets[nextIndex()].toJson();
+	}
+
+	@Benchmark
+	public byte[] encodeBinary() {
+		return DatasetCodec.encode(datasets[nextIndex()], false);
+	}
+
+	@Benchmark
+	public byte[] encodeBinaryCompressed() {
+		return DatasetCodec.encode(datasets[nextIndex()], true);
+	}
+
+	@Benchmark
+	public Dataset decodeBinary() {
+		return DatasetCodec.decode(binary[nextIndex()]);
+	}
+
+	@Benchmark
+	public Dataset decodeBinaryCompressed() {
+		return DatasetCodec.decode(compressed[nextIndex()]);
+	}
+
+	/* a stored full result with its typed columns, which are then ready to use */
+	@Benchmark
+	public TypedColumns decodeBinaryTyped() {
+		return DatasetCodec.decode(typed[nextIndex()]).getTypedColumns();
+	}
+
+	/* the typed columns of a table, computed from the cells */
+	@Benchmark
+	public TypedColumns typedColumns() {
+		return TypedColumns.of(datasets[nextIndex()]);
+	}
+
+	/* the sum of the numeric columns of a table, parsing the cells as before typed columns */
+	@Benchmark
+	public double sumParsed() {
+		Dataset ds = datasets[nextIndex()];
+		double sum = 0;
+		for (int c = 0; c < ds.relation.length; c++) {
+			DataType type = DataType.byString(ds.columnTypes[c]);
+			if (!TypedColumn.isNumeric(type))
+				continue;
+			String[] column = ds.relation[c];
+			for (int r = 1; r < column.length; r++) {
+				try {
+					sum += Double.parseDouble(column[r].replaceAll("[^\\d.-]",
+							""));
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		return sum;
+	}
+
+	/* the same sum from the cached typed columns */
+	@Benchmark
+	public double sumTyped() {
+		TypedColumns columns = datasets[nextIndex()].getTypedColumns();
+		double sum = 0;
+		for (int c = 0; c < columns.getNumCols(); c++) {
+			TypedColumn column = columns.get(c);
+			if (column == null)
+				continue;
+			for (int r = 1; r < column.size(); r++) {
+				if (!column.isNull(r))
+					sum += column.getDouble(r);
+			}
+		}
+		return sum;
+	}
+
+}
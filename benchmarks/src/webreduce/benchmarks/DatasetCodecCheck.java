@@ -0,0 +1,128 @@
+package webreduce.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import webreduce.data.Dataset;
+import webreduce.data.DatasetCodec;
+import webreduce.data.TypedColumn;
+import webreduce.data.TypedColumns;
+import webreduce.typing.ColumnProfile;
+import webreduce.typing.ColumnProfiler;
+
+/*
+ * Checks that the tables of a synthetic corpus round-trip through DatasetCodec in every format
+ * (plain or LZ4 compressed, with or without typed columns and column profiles), and that corrupt
+ * encodings (flipped bytes, overwritten ranges, truncations) either decode or are rejected with
+ * an IllegalArgumentException, never with any other exception. Exits with status 1 on a failure.
+ *
+ *   java -cp target/benchmarks.jar webreduce.benchmarks.DatasetCodecCheck [tables] [corruptions-per-encoding] [seed]
+ */
+public class DatasetCodecCheck {
+
+	private static long roundTrips = 0;
+	private static long corruptions = 0;
+	private static long rejected = 0;
+	private static long failures = 0;
+
+	private static void fail(String message) {
+		failures++;
+		if (failures <= 20)
+			System.out.println(message);
+	}
+
+	private static void checkRoundTrip(Dataset ds, boolean compress,
+			boolean typed, byte[] encoded) {
+		roundTrips++;
+		String variant = "table " + ds.getTableNum() + " (compress "
+				+ compress + ", typed " + typed + ")";
+		Dataset decoded;
+		try {
+			decoded = DatasetCodec.decode(encoded);
+		} catch (RuntimeException e) {
+			fail(variant + ": " + e);
+			return;
+		}
+		if (!ds.toJson().equals(decoded.toJson()))
+			fail(variant + ": decodes to a different table");
+		if (typed && !sameColumns(ds.getTypedColumns(), decoded.getTypedColumns()))
+			fail(variant + ": decodes to different typed columns");
+	}
+
+	private static boolean sameColumns(TypedColumns expected,
+			TypedColumns actual) {
+		if (expected.getNumCols() != actual.getNumCols())
+			return false;
+		for (int c = 0; c < expected.getNumCols(); c++) {
+			TypedColumn e = expected.get(c);
+			TypedColumn a = actual.get(c);
+			if (e == null ? a != null : !e.equals(a))
+				return false;
+		}
+		return true;
+	}
+
+	private static void checkCorruption(Random random, byte[] encoded) {
+		byte[] b;
+		int p = 3 + random.nextInt(Math.max(1, encoded.length - 3));
+		switch (random.nextInt(3)) {
+		case 0:
+			b = encoded.clone();
+			if (p < b.length)
+				b[p] ^= 1 << random.nextInt(8);
+			break;
+		case 1:
+			b = encoded.clone();
+			for (int i = p; i < Math.min(b.length, p + 1 + random.nextInt(8)); i++)
+				b[i] = (byte) random.nextInt(256);
+			break;
+		default:
+			b = Arrays.copyOf(encoded, Math.min(p, encoded.length));
+		}
+		corruptions++;
+		try {
+			DatasetCodec.decode(b);
+		} catch (IllegalArgumentException e) {
+			rejected++;
+		} catch (Throwable t) {
+			fail("corrupt encoding at byte " + p + " of " + encoded.length
+					+ ": " + t);
+		}
+	}
+
+	public static void main(String[] args) {
+		int tables = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int corruptionsPerEncoding = args.length > 1 ? Integer
+				.parseInt(args[1]) : 20;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+		Random random = new Random(seed);
+
+		SyntheticCorpus corpus = new SyntheticCorpus(seed);
+		ColumnProfiler profiler = new ColumnProfiler();
+		for (int t = 0; t < tables; t++) {
+			Dataset ds = corpus.table(t);
+			if (t % 2 == 1) {
+				ColumnProfile[] profiles = new ColumnProfile[ds.relation.length];
+				for (int c = 0; c < profiles.length; c++)
+					profiles[c] = profiler.profile(ds.relation[c], 1,
+							ds.relation[c].length);
+				ds.setColumnProfiles(profiles);
+			}
+			for (int v = 0; v < 4; v++) {
+				boolean compress = (v & 1) != 0;
+				boolean typed = (v & 2) != 0;
+				byte[] encoded = DatasetCodec.encode(ds, compress, typed);
+				checkRoundTrip(ds, compress, typed, encoded);
+				for (int i = 0; i < corruptionsPerEncoding; i++)
+					checkCorruption(random, encoded);
+			}
+		}
+
+		System.out.println(roundTrips + " round trips, " + corruptions
+				+ " corrupt encodings (" + rejected + " rejected), "
+				+ failures + " failures");
+		if (failures > 0)
+			System.exit(1);
+	}
+
+}
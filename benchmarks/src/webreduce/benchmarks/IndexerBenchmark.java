@@ -0,0 +1,97 @@
+package webreduce.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import webreduce.data.Dataset;
+import webreduce.indexing.Indexer;
+
+import com.martiansoftware.jsap.JSAPException;
+import com.martiansoftware.jsap.JSAPResult;
+
+/*
+ * Indexing of parsed tables: preprocessing, analysis and IndexWriter.addDocument, without reading
+ * the corpus. The flags are those of the Indexer command line, e.g. "-s" for storing the full
+ * result, which preprocesses the table first. (--preprocessing is not read by the per-table step,
+ * so it has no variant here.)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexerBenchmark {
+
+	/* exposes the per-table indexing step of the Indexer */
+	static class BenchmarkIndexer extends Indexer {
+		BenchmarkIndexer(JSAPResult config) throws IOException {
+			super(config);
+		}
+
+		void index(Dataset ds) throws IOException {
+			processDataset(ds);
+		}
+
+		void shutdown() throws IOException, InterruptedException {
+			close();
+		}
+	}
+
+	@Param({ "", "-s" })
+	public String flags;
+
+	@Param({ "1000" })
+	public int tables;
+
+	private File outputDir;
+	private BenchmarkIndexer indexer;
+	private Dataset[] datasets;
+	private int next = 0;
+
+	@Setup
+	public void setup() throws IOException, JSAPException {
+		outputDir = Files.createTempDirectory("dwtc-index-bench").toFile();
+		String args = (flags + " none " + outputDir.getPath()).trim();
+		JSAPResult config = Indexer.createParser().parse(args);
+		if (!config.success())
+			throw new IllegalArgumentException("Invalid indexer flags: " + flags);
+		indexer = new BenchmarkIndexer(config);
+		List<Dataset> ds = new SyntheticCorpus(42).tables(tables);
+		datasets = ds.toArray(new Dataset[ds.size()]);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException, InterruptedException {
+		indexer.shutdown();
+		FileUtils.deleteDirectory(outputDir);
+	}
+
+	@Benchmark
+	public void processDataset() throws IOException {
+		Dataset ds;
+		synchronized (this) {
+			ds = datasets[next];
+			next = (next + 1) % datasets.length;
+		}
+		indexer.index(ds);
+	}
+
+}
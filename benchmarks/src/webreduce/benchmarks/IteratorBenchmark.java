@@ -0,0 +1,106 @@
+package webreduce.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import webreduce.data.Dataset;
+import webreduce.iterator.Record;
+import webreduce.iterator.WebreduceIterator;
+
+/*
+ * End-to-end iteration over a generated corpus: reading, inflating, record splitting and either
+ * just counting the records or deserializing every table. Each invocation is one full pass.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IteratorBenchmark {
+
+	/* 0 iterates file by file, otherwise the number of pipeline readers */
+	@Param({ "0", "2" })
+	public int pipelineReaders;
+
+	@Param({ "false", "true" })
+	public boolean parse;
+
+	@Param({ "8" })
+	public int shards;
+
+	@Param({ "5000" })
+	public int tablesPerShard;
+
+	private File corpusDir;
+
+	static class BenchmarkIterator extends WebreduceIterator {
+		final AtomicLong records = new AtomicLong();
+		final boolean parse;
+
+		BenchmarkIterator(boolean parse) {
+			this.parse = parse;
+		}
+
+		@Override
+		protected void process(Record record) throws IOException {
+			if (parse) {
+				Dataset ds = parseDataset(record);
+				if (ds.relation == null)
+					return;
+			}
+			records.incrementAndGet();
+		}
+
+		@Override
+		protected void process(String key, String value) throws IOException {
+			if (parse && Dataset.fromJson(value).relation == null)
+				return;
+			records.incrementAndGet();
+		}
+
+		@Override
+		protected void finishProcessFile(File f) throws IOException {
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		corpusDir = Files.createTempDirectory("dwtc-corpus-bench").toFile();
+		new SyntheticCorpus(42).writeShards(corpusDir, shards, tablesPerShard);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(corpusDir);
+	}
+
+	@Benchmark
+	public long iterate() throws IOException, InterruptedException {
+		BenchmarkIterator it = new BenchmarkIterator(parse);
+		it.setPipelineReaders(pipelineReaders);
+		it.iterate(corpusDir.getPath());
+		if (it.records.get() != (long) shards * tablesPerShard)
+			throw new IllegalStateException("Missed records: "
+					+ it.records.get());
+		return it.records.get();
+	}
+
+}
@@ -0,0 +1,201 @@
+package webreduce.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import webreduce.data.Dataset;
+import webreduce.data.HeaderPosition;
+import webreduce.data.TableType;
+
+import com.google.common.base.Charsets;
+
+/*
+ * Generates synthetic DWTC tables and gzip shards in the format of the corpus ("key<TAB>json" lines),
+ * so that benchmarks run offline and reproducibly. The generator is deterministic for a given seed.
+ *
+ * The distributions roughly follow the shape of the corpus: most tables are narrow (a handful of
+ * columns, geometric tail up to 40) and short (log-normal heights around 10 rows, tail up to a few
+ * thousand), cells are short with a long tail, and columns are text, integers, decimals, currency
+ * amounts, dates or mostly empty.
+ */
+public class SyntheticCorpus {
+
+	private static final String[] WORDS = { "name", "year", "price", "total",
+			"city", "team", "country", "date", "population", "rank", "score",
+			"album", "title", "artist", "points", "model", "type", "area",
+			"the", "new", "united", "states", "john", "league", "season",
+			"london", "berlin", "county", "school", "club", "record", "game",
+			"released", "label", "university", "station", "river", "party" };
+	private static final String[] HOSTS = { "www.example.com",
+			"en.wikipedia.org", "sports.example.net", "shop.example.co.uk",
+			"data.example.org", "www.example.de", "blog.example.com",
+			"stats.example.com" };
+	private static final TableType[] TABLE_TYPES = { TableType.RELATION,
+			TableType.ENTITY, TableType.MATRIX, TableType.LAYOUT,
+			TableType.OTHER };
+	private static final double[] TABLE_TYPE_WEIGHTS = { 0.6, 0.25, 0.05,
+			0.05, 0.05 };
+
+	private enum ColumnKind {
+		TEXT, INTEGER, DECIMAL, CURRENCY, DATE, SPARSE
+	}
+
+	private static final double[] COLUMN_KIND_WEIGHTS = { 0.55, 0.2, 0.1,
+			0.05, 0.05, 0.05 };
+
+	private final Random random;
+	private long offset = 0;
+
+	public SyntheticCorpus(long seed) {
+		this.random = new Random(seed);
+	}
+
+	public List<Dataset> tables(int n) {
+		List<Dataset> tables = new ArrayList<Dataset>(n);
+		for (int i = 0; i < n; i++)
+			tables.add(table(i));
+		return tables;
+	}
+
+	public Dataset table(int tableNum) {
+		int numCols = Math.min(40, 2 + geometric(0.3));
+		int numRows = (int) Math.min(3000,
+				Math.max(2, Math.round(logNormal(Math.log(10), 1.0))));
+		String[][] relation = new String[numCols][];
+		for (int c = 0; c < numCols; c++) {
+			ColumnKind kind = ColumnKind.values()[pick(COLUMN_KIND_WEIGHTS)];
+			String[] column = new String[numRows];
+			column[0] = words(1 + geometric(0.6));
+			for (int r = 1; r < numRows; r++)
+				column[r] = cell(kind);
+			relation[c] = column;
+		}
+
+		Dataset ds = new Dataset();
+		ds.relation = relation;
+		String host = HOSTS[random.nextInt(HOSTS.length)];
+		ds.url = "http://" + host + "/" + words(1 + random.nextInt(4)).replace(' ', '_')
+				+ (random.nextBoolean() ? ".html" : "");
+		ds.pageTitle = words(2 + random.nextInt(6));
+		ds.title = random.nextDouble() < 0.2 ? words(1 + random.nextInt(5)) : "";
+		ds.hasHeader = random.nextDouble() < 0.7;
+		ds.headerPosition = ds.hasHeader ? HeaderPosition.FIRST_ROW
+				: HeaderPosition.NONE;
+		ds.tableType = TABLE_TYPES[pick(TABLE_TYPE_WEIGHTS)];
+		String[] terms = new String[5 + random.nextInt(6)];
+		for (int t = 0; t < terms.length; t++)
+			terms[t] = WORDS[random.nextInt(WORDS.length)];
+		ds.termSet = terms;
+		ds.tableNum = tableNum % 8;
+		ds.s3Link = "common-crawl/crawl-data/segment-" + random.nextInt(100)
+				+ "/warc/part-" + random.nextInt(1000) + ".warc.gz";
+		ds.recordOffset = offset;
+		offset += 5000 + random.nextInt(100000);
+		ds.recordEndOffset = offset;
+		return ds;
+	}
+
+	private String cell(ColumnKind kind) {
+		switch (kind) {
+		case INTEGER:
+			return Long.toString((long) logNormal(Math.log(500), 2.5));
+		case DECIMAL:
+			return String.format(Locale.ROOT, "%.2f",
+					logNormal(Math.log(50), 2.0));
+		case CURRENCY:
+			return "$"
+					+ String.format(Locale.ROOT, "%,.2f",
+							logNormal(Math.log(100), 2.0));
+		case DATE:
+			return (1950 + random.nextInt(70)) + "-"
+					+ String.format(Locale.ROOT, "%02d", 1 + random.nextInt(12))
+					+ "-"
+					+ String.format(Locale.ROOT, "%02d", 1 + random.nextInt(28));
+		case SPARSE:
+			return random.nextDouble() < 0.8 ? "" : words(1);
+		default:
+			// log-normal number of words gives a long tail of long cells
+			return words((int) Math.max(1,
+					Math.round(logNormal(Math.log(1.5), 0.8))));
+		}
+	}
+
+	private String words(int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			if (i > 0)
+				sb.append(' ');
+			String w = WORDS[random.nextInt(WORDS.length)];
+			sb.append(i == 0 ? Character.toUpperCase(w.charAt(0))
+					+ w.substring(1) : w);
+		}
+		return sb.toString();
+	}
+
+	private int geometric(double p) {
+		int n = 0;
+		while (random.nextDouble() > p)
+			n++;
+		return n;
+	}
+
+	private double logNormal(double mu, double sigma) {
+		return Math.exp(mu + sigma * random.nextGaussian());
+	}
+
+	private int pick(double[] weights) {
+		double x = random.nextDouble();
+		for (int i = 0; i < weights.length; i++) {
+			x -= weights[i];
+			if (x < 0)
+				return i;
+		}
+		return weights.length - 1;
+	}
+
+	/* writes numShards shards of tablesPerShard tables each to dir */
+	public void writeShards(File dir, int numShards, int tablesPerShard)
+			throws IOException {
+		dir.mkdirs();
+		for (int s = 0; s < numShards; s++) {
+			File shard = new File(dir, String.format(Locale.ROOT,
+					"part-%05d.json.gz", s));
+			Writer out = new BufferedWriter(new OutputStreamWriter(
+					new GZIPOutputStream(new FileOutputStream(shard)),
+					Charsets.UTF_8));
+			try {
+				for (int i = 0; i < tablesPerShard; i++) {
+					Dataset ds = table(i);
+					out.write(ds.s3Link + "|" + ds.recordOffset + "|"
+							+ ds.tableNum);
+					out.write('\t');
+					out.write(ds.toJson());
+					out.write('\n');
+				}
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.out
+					.println("Usage: java webreduce.benchmarks.SyntheticCorpus <output-dir> <num-shards> <tables-per-shard> [<seed>]");
+			System.exit(1);
+		}
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+		new SyntheticCorpus(seed).writeShards(new File(args[0]),
+				Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+	}
+
+}
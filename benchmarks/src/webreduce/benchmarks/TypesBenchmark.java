@@ -0,0 +1,124 @@
+package webreduce.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import webreduce.data.Dataset;
+import webreduce.typing.ColumnProfile;
+import webreduce.typing.ColumnProfiler;
+import webreduce.typing.ColumnTyper;
+import webreduce.typing.DataType;
+import webreduce.typing.Types;
+
+/*
+ * column typing (and profiling) of the columns of synthetic tables, and typing of their single
+ * cells
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TypesBenchmark {
+
+	@Param({ "1000" })
+	public int tables;
+
+	// rows of the tall columns, built by repeating the cells of the synthetic columns
+	@Param({ "50000" })
+	public int tallRows;
+
+	private String[][] columns;
+	private String[] cells;
+	private String[][] tallColumns;
+	private int nextTall = 0;
+	private final ColumnTyper sampled = new ColumnTyper();
+	private final ColumnTyper exact = new ColumnTyper(1);
+	private final ColumnProfiler profiler = new ColumnProfiler();
+	private int next = 0;
+	private int nextCell = 0;
+
+	@Setup
+	public void setup() {
+		List<String[]> cols = new ArrayList<String[]>();
+		for (Dataset ds : new SyntheticCorpus(42).tables(tables)) {
+			for (String[] col : ds.relation)
+				cols.add(col);
+		}
+		columns = cols.toArray(new String[cols.size()][]);
+		List<String> c = new ArrayList<String>();
+		for (String[] col : columns) {
+			for (int r = 1; r < col.length; r++)
+				c.add(col[r]);
+		}
+		cells = c.toArray(new String[c.size()]);
+		tallColumns = new String[Math.min(64, columns.length)][];
+		for (int t = 0; t < tallColumns.length; t++) {
+			String[] col = columns[t];
+			tallColumns[t] = new String[tallRows];
+			for (int r = 0; r < tallRows; r++)
+				tallColumns[t][r] = col[r % col.length];
+		}
+	}
+
+	@Benchmark
+	public DataType columnType() {
+		String[] col = columns[next];
+		next = (next + 1) % columns.length;
+		return Types.columnType(col);
+	}
+
+	/* typing and profiling in one pass, see ColumnProfiler */
+	@Benchmark
+	public ColumnProfile columnProfile() {
+		String[] col = columns[next];
+		next = (next + 1) % columns.length;
+		return profiler.profile(col);
+	}
+
+	/* tall columns, typed from a sample until the decision is settled */
+	@Benchmark
+	public DataType tallColumnType() {
+		String[] col = tallColumns[nextTall];
+		nextTall = (nextTall + 1) % tallColumns.length;
+		return sampled.columnType(col);
+	}
+
+	/* tall columns, every cell typed */
+	@Benchmark
+	public DataType tallColumnTypeExact() {
+		String[] col = tallColumns[nextTall];
+		nextTall = (nextTall + 1) % tallColumns.length;
+		return exact.columnType(col);
+	}
+
+	@Benchmark
+	public DataType cellType() {
+		String cell = cells[nextCell];
+		nextCell = (nextCell + 1) % cells.length;
+		return Types.typeOf(cell);
+	}
+
+	/* the regular expressions typeOf replaced */
+	@Benchmark
+	public DataType cellTypeRegex() {
+		String cell = cells[nextCell];
+		nextCell = (nextCell + 1) % cells.length;
+		return Types.typeOfRegex(cell);
+	}
+
+}
@@ -0,0 +1,140 @@
+package webreduce.benchmarks;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import webreduce.data.Dataset;
+import webreduce.typing.DataType;
+import webreduce.typing.Types;
+
+/*
+ * Checks that Types.typeOf returns the same type as the regular expression version
+ * Types.typeOfRegex for the cells of a synthetic corpus, for mutations of them and for random
+ * strings over the characters the patterns care about. The e-mail, URL and date types that only
+ * typeOf knows may stand in for any other type, but cells the regular expressions type as numbers
+ * and typeOf as text are counted and printed separately, and a plain number ('2014', '1,234',
+ * '3.14') typed as text counts as a difference. Exits with status 1 on a difference.
+ *
+ *   java -cp target/benchmarks.jar webreduce.benchmarks.TypesDifferential [tables] [random-strings] [seed]
+ */
+public class TypesDifferential {
+
+	private static final String ALPHABET = "0123456789,,..--$$\u00a3\u20a4\u20ac%%  \t\n\r\u000b\f\u0085\u2028\u2029xA@:/TZ+";
+
+	private static long checked = 0;
+	private static long differences = 0;
+	private static long textTypes = 0;
+	private static long numbersAsText = 0;
+
+	// an optionally signed integer or decimal, optionally with thousands separators
+	// typed as numbers by both, also if the corpus happens to have none like them
+	private static final String[] PLAIN_NUMBERS = { "2014", "1999", "1,234",
+			"3.14", "-12", "1,234,567.89", "12.05", "05" };
+	private static final Pattern PLAIN_NUMBER = Pattern
+			.compile("\\s*-?(\\d+|\\d{1,3}(,\\d{3})+)(\\.\\d+)?\\s*");
+
+	private static void check(String s) {
+		checked++;
+		DataType expected = Types.typeOfRegex(s);
+		DataType actual = Types.typeOf(s);
+		if (isTextType(actual) && isNumericType(expected)) {
+			numbersAsText++;
+			if (PLAIN_NUMBER.matcher(s).matches())
+				difference(s, expected, actual);
+			else if (numbersAsText <= 20)
+				System.out.println("\"" + escape(s) + "\": regex " + expected
+						+ ", classifier " + actual + " (number as text)");
+		} else if (isTextType(actual)) {
+			textTypes++;
+		} else if (expected != actual) {
+			difference(s, expected, actual);
+		}
+	}
+
+	private static void difference(String s, DataType expected, DataType actual) {
+		differences++;
+		if (differences <= 20)
+			System.out.println("\"" + escape(s) + "\": regex " + expected
+					+ ", classifier " + actual);
+	}
+
+	private static boolean isTextType(DataType t) {
+		return t == DataType.EMAIL || t == DataType.URL
+				|| t == DataType.DATETIME;
+	}
+
+	private static boolean isNumericType(DataType t) {
+		return t == DataType.INTEGER || t == DataType.LONG
+				|| t == DataType.DOUBLE || t == DataType.CURRENCY;
+	}
+
+	private static String escape(String s) {
+		StringBuilder sb = new StringBuilder();
+		for (char c : s.toCharArray()) {
+			if (c >= 0x20 && c < 0x7f)
+				sb.append(c);
+			else
+				sb.append(String.format("\\u%04x", (int) c));
+		}
+		return sb.toString();
+	}
+
+	private static String randomString(Random random, int maxLength) {
+		char[] chars = new char[random.nextInt(maxLength) + 1];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+		return new String(chars);
+	}
+
+	/* replaces, inserts or deletes a few characters */
+	private static String mutate(Random random, String s) {
+		StringBuilder sb = new StringBuilder(s);
+		for (int m = 1 + random.nextInt(3); m > 0; m--) {
+			int p = random.nextInt(sb.length() + 1);
+			char c = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+			switch (random.nextInt(3)) {
+			case 0:
+				sb.insert(p, c);
+				break;
+			case 1:
+				if (p < sb.length())
+					sb.setCharAt(p, c);
+				break;
+			default:
+				if (p < sb.length())
+					sb.deleteCharAt(p);
+			}
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] args) {
+		int tables = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int randomStrings = args.length > 1 ? Integer.parseInt(args[1])
+				: 10000000;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+		Random random = new Random(seed);
+
+		for (String n : PLAIN_NUMBERS)
+			check(n);
+		SyntheticCorpus corpus = new SyntheticCorpus(seed);
+		for (int t = 0; t < tables; t++) {
+			Dataset ds = corpus.table(t);
+			for (String[] column : ds.relation) {
+				for (String cell : column) {
+					check(cell);
+					check(mutate(random, cell));
+				}
+			}
+		}
+		for (int i = 0; i < randomStrings; i++)
+			check(randomString(random, i % 2 == 0 ? 8 : 24));
+
+		System.out.println(checked + " strings checked, " + textTypes
+				+ " e-mail addresses, URLs or dates, " + numbersAsText
+				+ " numbers typed as text, " + differences + " differences");
+		if (differences > 0)
+			System.exit(1);
+	}
+
+}
@@ -1,43 +1,54 @@
 package webreduce.cleaning;
 
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 
-import com.google.common.base.Joiner;
+import webreduce.cleaning.AnalysisContext.TermSink;
 
 public class Analysis {
 
-	private static Joiner joiner = Joiner.on(" ");;
+	private static final ThreadLocal<AnalysisContext> contexts = new ThreadLocal<AnalysisContext>() {
+		@Override
+		protected AnalysisContext initialValue() {
+			return new AnalysisContext();
+		}
+	};
 
-	public static List<String> tokenize(Analyzer analyzer, String keywords) {
+	/* the analysis context of the current thread */
+	public static AnalysisContext context() {
+		return contexts.get();
+	}
 
-		List<String> result = new ArrayList<String>();
-		if (keywords.length() == 0)
-			return result;
-		
-
-		try {
-			TokenStream stream = analyzer.tokenStream(null, new StringReader(
-					keywords));
-			stream.reset();
-			while (stream.incrementToken()) {
-				result.add(stream.getAttribute(CharTermAttribute.class)
-						.toString());
+	public static List<String> tokenize(Analyzer analyzer, String keywords) {
+		final List<String> result = new ArrayList<String>();
+		final AnalysisContext context = context();
+		context.analyze(analyzer, keywords, new TermSink() {
+			@Override
+			public void term(char[] chars, int length) {
+				result.add(context.term(chars, length));
 			}
-			stream.end();
-			stream.close();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		});
 		return result;
 	}
-	
+
+	/* passes the terms of keywords to sink without creating Strings for them */
+	public static void tokenize(Analyzer analyzer, String keywords,
+			TermSink sink) {
+		context().analyze(analyzer, keywords, sink);
+	}
+
 	public static String analyze(Analyzer analyzer, String keywords) {
-		return joiner.join(tokenize(analyzer, keywords));
+		final StringBuilder sb = new StringBuilder();
+		context().analyze(analyzer, keywords, new TermSink() {
+			@Override
+			public void term(char[] chars, int length) {
+				if (sb.length() > 0)
+					sb.append(' ');
+				sb.append(chars, 0, length);
+			}
+		});
+		return sb.toString();
 	}
-}
\ No newline at end of file
+}
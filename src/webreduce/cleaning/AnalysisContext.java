@@ -0,0 +1,149 @@
+package webreduce.cleaning;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+/*
+ * Reusable state for running an Analyzer (e.g. CustomAnalyzer) over many short texts like titles
+ * and URLs. The text is copied into a pooled char buffer that the token stream reads from, and
+ * tokens are handed to a TermSink straight from the token stream's term buffer, so analyzing a
+ * text allocates nothing. Term strings, when needed, come from a bounded dictionary of recently
+ * seen terms, so frequent terms are created once instead of once per occurrence.
+ *
+ * Not thread safe, get the context of the current thread with Analysis.context().
+ */
+public class AnalysisContext {
+
+	/* receives the terms of a text, chars[0, length) is only valid during the call */
+	public interface TermSink {
+		void term(char[] chars, int length);
+	}
+
+	// number of slots of the term dictionary, a power of two
+	private static final int DICTIONARY_SIZE = 1 << 14;
+	// longer terms are rare and not worth keeping
+	private static final int MAX_DICTIONARY_TERM_LENGTH = 32;
+
+	private final CharsReader reader = new CharsReader();
+	private final StringBuilder text = new StringBuilder();
+	private final String[] dictionary = new String[DICTIONARY_SIZE];
+	private String[] terms = new String[16];
+	private int numTerms = 0;
+
+	private final TermSink collector = new TermSink() {
+		@Override
+		public void term(char[] chars, int length) {
+			if (numTerms == terms.length)
+				terms = Arrays.copyOf(terms, numTerms * 2);
+			terms[numTerms++] = AnalysisContext.this.term(chars, length);
+		}
+	};
+
+	/* an empty builder to assemble a text in, valid until the next call */
+	public StringBuilder text() {
+		text.setLength(0);
+		return text;
+	}
+
+	/* passes the terms of s to sink, in order */
+	public void analyze(Analyzer analyzer, CharSequence s, TermSink sink) {
+		if (s == null || s.length() == 0)
+			return;
+		reader.reset(s);
+		try {
+			TokenStream stream = analyzer.tokenStream(null, reader);
+			try {
+				CharTermAttribute term = stream
+						.getAttribute(CharTermAttribute.class);
+				stream.reset();
+				while (stream.incrementToken())
+					sink.term(term.buffer(), term.length());
+				stream.end();
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			// can't happen, the text is read from memory
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/* the terms of s */
+	public String[] terms(Analyzer analyzer, CharSequence s) {
+		numTerms = 0;
+		analyze(analyzer, s, collector);
+		String[] result = Arrays.copyOf(terms, numTerms);
+		Arrays.fill(terms, 0, numTerms, null);
+		return result;
+	}
+
+	/*
+	 * the term chars[0, length) as a String, taken from the dictionary if it is there. The
+	 * dictionary is direct mapped, a new term replaces the one in its slot.
+	 */
+	public String term(char[] chars, int length) {
+		if (length > MAX_DICTIONARY_TERM_LENGTH)
+			return new String(chars, 0, length);
+		int h = 0;
+		for (int i = 0; i < length; i++)
+			h = 31 * h + chars[i];
+		int slot = (h ^ (h >>> 16)) & (DICTIONARY_SIZE - 1);
+		String s = dictionary[slot];
+		if (s != null && s.length() == length) {
+			int i = 0;
+			while (i < length && s.charAt(i) == chars[i])
+				i++;
+			if (i == length)
+				return s;
+		}
+		s = new String(chars, 0, length);
+		dictionary[slot] = s;
+		return s;
+	}
+
+	/* a Reader over a pooled copy of a CharSequence, reset for each text */
+	private static class CharsReader extends Reader {
+		private char[] chars = new char[256];
+		private int length = 0;
+		private int pos = 0;
+
+		void reset(CharSequence s) {
+			length = s.length();
+			if (length > chars.length)
+				chars = new char[Math.max(length, chars.length * 2)];
+			if (s instanceof String)
+				((String) s).getChars(0, length, chars, 0);
+			else if (s instanceof StringBuilder)
+				((StringBuilder) s).getChars(0, length, chars, 0);
+			else
+				for (int i = 0; i < length; i++)
+					chars[i] = s.charAt(i);
+			pos = 0;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) {
+			if (pos >= length)
+				return -1;
+			int n = Math.min(len, length - pos);
+			System.arraycopy(chars, pos, cbuf, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int read() {
+			return pos < length ? chars[pos++] : -1;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
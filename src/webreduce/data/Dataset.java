@@ -5,6 +5,8 @@ import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.nio.charset.Charset;
 
+import webreduce.typing.ColumnProfile;
+
 import com.google.common.base.Charsets;
 import com.google.gson.Gson;
 
@@ -41,11 +43,16 @@ public class Dataset implements Serializable {
 	 * webreduce.tools.Indexer)
 	 */
 	public String[] columnTypes;
+	public ColumnProfile[] columnProfiles; // only with profiling, see ColumnProfiler
 	public String[] urlTermSet;
 	public String[] titleTermSet;
 	public String domain; // extracted from the URL using Guava's
 							// InternetDomainName class
 
+	// the numeric columns as primitives, computed on first use (see getTypedColumns()) or decoded
+	// with a stored full result; neither serialized nor part of the JSON
+	transient TypedColumns typedColumns;
+
 	public Dataset() {
 	}
 
@@ -67,6 +74,22 @@ public class Dataset implements Serializable {
 
 	public void setRelation(String[][] relation) {
 		this.relation = relation;
+		this.typedColumns = null;
+	}
+
+	/*
+	 * the numeric columns of the relation as primitive values, computed once per table and cached.
+	 * Assigning relation or columnTypes directly afterwards does not invalidate them, setRelation
+	 * does. Tables are not shared between threads, but two threads computing them at once would
+	 * only compute them twice.
+	 */
+	public TypedColumns getTypedColumns() {
+		TypedColumns columns = typedColumns;
+		if (columns == null) {
+			columns = TypedColumns.of(this);
+			typedColumns = columns;
+		}
+		return columns;
 	}
 
 	public String getTitle() {
@@ -109,6 +132,14 @@ public class Dataset implements Serializable {
 		this.tableNum = tableNum;
 	}
 
+	/*
+	 * stable identifier of the table, built from its location in the CC corpus (the WARC file, the
+	 * offset of the page in it and the index of the table on the page)
+	 */
+	public String getTableId() {
+		return s3Link + "|" + recordOffset + "|" + tableNum;
+	}
+
 	public long getRecordEndOffset() {
 		return recordEndOffset;
 	}
@@ -133,6 +164,14 @@ public class Dataset implements Serializable {
 		this.columnTypes = columnTypes;
 	}
 
+	public ColumnProfile[] getColumnProfiles() {
+		return columnProfiles;
+	}
+
+	public void setColumnProfiles(ColumnProfile[] columnProfiles) {
+		this.columnProfiles = columnProfiles;
+	}
+
 	public String getDomain() {
 		return domain;
 	}
@@ -198,6 +237,11 @@ public class Dataset implements Serializable {
 				.fromJson(new InputStreamReader(jsonIn, utf8), Dataset.class);
 	}
 
+	/* deserializes only the fields of the given projection, see DatasetProjection */
+	public static Dataset fromJson(String json, DatasetProjection projection) {
+		return projection.fromJson(json);
+	}
+
 	public String toJson() {
 		return gson.toJson(this);
 	}
@@ -0,0 +1,577 @@
+package webreduce.data;
+
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import webreduce.typing.ColumnProfile;
+import webreduce.typing.DataType;
+
+import com.google.common.base.Charsets;
+
+/*
+ * Compact, versioned binary encoding of a Dataset, used by the Indexer to store full results
+ * instead of JSON. It round-trips every field exactly (including nulls, which JSON loses).
+ *
+ * Layout: a magic byte (which can't start a JSON document, see isBinary()), the format version, a
+ * flags byte and the body, which is LZ4 block compressed if FLAG_LZ4 is set (then prefixed with
+ * its uncompressed length). Numbers and lengths in the body are varints, nullable values are
+ * shifted by one so that 0 means null. Cells are dictionary encoded per column, so repeated values
+ * in a column are written once. Table types, header positions and column types are written as
+ * codes instead of names.
+ *
+ * With FLAG_TYPED_COLUMNS, the table's TypedColumns follow the relation, so that readers get the
+ * primitive values without parsing the cells, and with FLAG_COLUMN_PROFILES its column profiles
+ * follow. Readers that don't know a flag ignore what follows.
+ */
+public class DatasetCodec {
+
+	public static final int VERSION = 1;
+	private static final byte MAGIC = (byte) 0xD7;
+	private static final int FLAG_LZ4 = 1;
+	private static final int FLAG_TYPED_COLUMNS = 2;
+	private static final int FLAG_COLUMN_PROFILES = 4;
+	// bodies shorter than this are not worth compressing
+	private static final int MIN_COMPRESS_LENGTH = 128;
+
+	// column type names as written by Indexer.preprocess, append only (the index is the code)
+	private static final String[] COLUMN_TYPES = { "None", "String", "Email",
+			"URL", "Datetime", "Double", "Long", "Integer", "Currency" };
+	private static final Map<String, Integer> COLUMN_TYPE_CODES = new HashMap<String, Integer>();
+	static {
+		for (int i = 0; i < COLUMN_TYPES.length; i++)
+			COLUMN_TYPE_CODES.put(COLUMN_TYPES[i], i);
+	}
+
+	// append only (the index + 1 is the code), independent of the order the enums declare them in
+	private static final TableType[] TABLE_TYPES = { TableType.LAYOUT,
+			TableType.RELATION, TableType.MATRIX, TableType.ENTITY,
+			TableType.OTHER };
+	private static final HeaderPosition[] HEADER_POSITIONS = {
+			HeaderPosition.FIRST_ROW, HeaderPosition.FIRST_COLUMN,
+			HeaderPosition.NONE, HeaderPosition.MIXED };
+	private static final Map<TableType, Integer> TABLE_TYPE_CODES = codes(
+			TableType.class, TABLE_TYPES);
+	private static final Map<HeaderPosition, Integer> HEADER_POSITION_CODES = codes(
+			HeaderPosition.class, HEADER_POSITIONS);
+
+	private static <E extends Enum<E>> Map<E, Integer> codes(Class<E> type,
+			E[] table) {
+		Map<E, Integer> codes = new EnumMap<E, Integer>(type);
+		for (int i = 0; i < table.length; i++)
+			codes.put(table[i], i + 1);
+		if (codes.size() != type.getEnumConstants().length)
+			throw new IllegalStateException("no codes for all constants of "
+					+ type.getSimpleName());
+		return codes;
+	}
+
+	private DatasetCodec() {
+	}
+
+	/* true if the stored bytes were written by encode(), false for (UTF-8) JSON */
+	public static boolean isBinary(byte[] b) {
+		return b.length > 0 && b[0] == MAGIC;
+	}
+
+	public static byte[] encode(Dataset ds, boolean compress) {
+		return encode(ds, compress, false);
+	}
+
+	/* with typedColumns, the table's TypedColumns are stored too (and computed if necessary) */
+	public static byte[] encode(Dataset ds, boolean compress,
+			boolean typedColumns) {
+		Output out = new Output(256);
+		writeString(out, ds.pageTitle);
+		writeString(out, ds.title);
+		writeString(out, ds.url);
+		out.writeVarint(ds.hasHeader == null ? 0 : ds.hasHeader ? 2 : 1);
+		out.writeVarint(ds.headerPosition == null ? 0 : HEADER_POSITION_CODES
+				.get(ds.headerPosition));
+		out.writeVarint(ds.tableType == null ? 0 : TABLE_TYPE_CODES
+				.get(ds.tableType));
+		writeStrings(out, ds.termSet);
+		out.writeVarint(zigZag(ds.tableNum));
+		writeString(out, ds.s3Link);
+		out.writeVarint(zigZag(ds.recordEndOffset));
+		out.writeVarint(zigZag(ds.recordOffset));
+		writeColumnTypes(out, ds.columnTypes);
+		writeStrings(out, ds.urlTermSet);
+		writeStrings(out, ds.titleTermSet);
+		writeString(out, ds.domain);
+		writeRelation(out, ds.relation);
+		if (typedColumns)
+			writeTypedColumns(out, ds.getTypedColumns());
+		boolean profiles = ds.columnProfiles != null;
+		if (profiles)
+			writeColumnProfiles(out, ds.columnProfiles);
+
+		boolean lz4 = compress && out.pos >= MIN_COMPRESS_LENGTH;
+		byte[] body = lz4 ? Lz4Block.compress(out.buf, out.pos) : out.buf;
+		int bodyLength = lz4 ? body.length : out.pos;
+		Output result = new Output(bodyLength + 8);
+		result.writeByte(MAGIC);
+		result.writeByte(VERSION);
+		result.writeByte((lz4 ? FLAG_LZ4 : 0)
+				| (typedColumns ? FLAG_TYPED_COLUMNS : 0)
+				| (profiles ? FLAG_COLUMN_PROFILES : 0));
+		if (lz4)
+			result.writeVarint(out.pos);
+		result.writeBytes(body, 0, bodyLength);
+		return Arrays.copyOf(result.buf, result.pos);
+	}
+
+	public static Dataset decode(byte[] b) {
+		if (!isBinary(b))
+			throw new IllegalArgumentException("not an encoded Dataset");
+		try {
+			if (b[1] != VERSION)
+				throw new IllegalArgumentException(
+						"unsupported Dataset encoding version " + b[1]);
+			Input in = new Input(b, 3);
+			if ((b[2] & FLAG_LZ4) != 0) {
+				int length = in.readSize(Integer.MAX_VALUE);
+				in = new Input(Lz4Block.decompress(b, in.pos, b.length
+						- in.pos, length), 0);
+			}
+			Dataset ds = new Dataset();
+			ds.pageTitle = readString(in);
+			ds.title = readString(in);
+			ds.url = readString(in);
+			int hasHeader = (int) in.readVarint();
+			ds.hasHeader = hasHeader == 0 ? null : hasHeader == 2;
+			int headerPosition = (int) in.readVarint();
+			ds.headerPosition = headerPosition == 0 ? null
+					: HEADER_POSITIONS[headerPosition - 1];
+			int tableType = (int) in.readVarint();
+			ds.tableType = tableType == 0 ? null : TABLE_TYPES[tableType - 1];
+			ds.termSet = readStrings(in);
+			ds.tableNum = (int) unZigZag(in.readVarint());
+			ds.s3Link = readString(in);
+			ds.recordEndOffset = unZigZag(in.readVarint());
+			ds.recordOffset = unZigZag(in.readVarint());
+			ds.columnTypes = readColumnTypes(in);
+			ds.urlTermSet = readStrings(in);
+			ds.titleTermSet = readStrings(in);
+			ds.domain = readString(in);
+			ds.relation = readRelation(in);
+			if ((b[2] & FLAG_TYPED_COLUMNS) != 0)
+				ds.typedColumns = readTypedColumns(in);
+			if ((b[2] & FLAG_COLUMN_PROFILES) != 0)
+				ds.columnProfiles = readColumnProfiles(in);
+			return ds;
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("corrupt encoded Dataset", e);
+		}
+	}
+
+	/* decodes a stored full result, which is either binary or JSON */
+	public static Dataset decodeStored(byte[] b) {
+		if (isBinary(b))
+			return decode(b);
+		return Dataset.fromJson(new String(b, Charsets.UTF_8));
+	}
+
+	/* each column is dictionary encoded: 0 is null, 1 a new value that follows, n > 1 value n - 2 */
+	private static void writeRelation(Output out, String[][] relation) {
+		if (relation == null) {
+			out.writeVarint(0);
+			return;
+		}
+		out.writeVarint(relation.length + 1);
+		Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		for (String[] column : relation) {
+			if (column == null) {
+				out.writeVarint(0);
+				continue;
+			}
+			out.writeVarint(column.length + 1);
+			dictionary.clear();
+			for (String cell : column) {
+				if (cell == null) {
+					out.writeVarint(0);
+					continue;
+				}
+				Integer ref = dictionary.get(cell);
+				if (ref != null) {
+					out.writeVarint(ref + 2);
+				} else {
+					dictionary.put(cell, dictionary.size());
+					out.writeVarint(1);
+					writeString(out, cell);
+				}
+			}
+		}
+	}
+
+	private static String[][] readRelation(Input in) {
+		int numCols = in.readSize(in.remaining() + 1) - 1;
+		if (numCols < 0)
+			return null;
+		String[][] relation = new String[numCols][];
+		List<String> dictionary = new ArrayList<String>();
+		for (int c = 0; c < numCols; c++) {
+			int numRows = in.readSize(in.remaining() + 1) - 1;
+			if (numRows < 0)
+				continue;
+			String[] column = new String[numRows];
+			dictionary.clear();
+			for (int r = 0; r < numRows; r++) {
+				int ref = (int) in.readVarint();
+				if (ref == 1) {
+					column[r] = readString(in);
+					dictionary.add(column[r]);
+				} else if (ref > 1) {
+					column[r] = dictionary.get(ref - 2);
+				}
+			}
+			relation[c] = column;
+		}
+		return relation;
+	}
+
+	/*
+	 * per column 0 if it is not typed, otherwise the column type code + 1, the size, the words of
+	 * the null bitmap and the values of the rows that are not null: longs as zig-zag deltas, doubles
+	 * as their 8 bytes
+	 */
+	private static void writeTypedColumns(Output out, TypedColumns columns) {
+		out.writeVarint(columns.getNumCols());
+		for (int c = 0; c < columns.getNumCols(); c++) {
+			TypedColumn column = columns.get(c);
+			if (column == null) {
+				out.writeVarint(0);
+				continue;
+			}
+			out.writeVarint(COLUMN_TYPE_CODES.get(column.getType().Name) + 1);
+			int size = column.size();
+			out.writeVarint(size);
+			for (long word : column.getNulls())
+				out.writeVarint(word);
+			long last = 0;
+			for (int r = 0; r < size; r++) {
+				if (column.isNull(r))
+					continue;
+				if (column.isIntegral()) {
+					long v = column.getLong(r);
+					out.writeVarint(zigZag(v - last));
+					last = v;
+				} else {
+					out.writeLong(Double.doubleToRawLongBits(column
+							.getDouble(r)));
+				}
+			}
+		}
+	}
+
+	private static TypedColumns readTypedColumns(Input in) {
+		int numCols = in.readSize(in.remaining());
+		TypedColumn[] columns = new TypedColumn[numCols];
+		for (int c = 0; c < numCols; c++) {
+			int code = (int) in.readVarint();
+			if (code == 0)
+				continue;
+			DataType type = DataType.byString(COLUMN_TYPES[code - 1]);
+			if (!TypedColumn.isNumeric(type))
+				throw new IllegalArgumentException("corrupt typed column");
+			// every 64 rows take at least one byte of the null bitmap
+			int size = in.readSize(in.remaining() * 64L);
+			long[] nulls = new long[(size + 63) >>> 6];
+			for (int i = 0; i < nulls.length; i++)
+				nulls[i] = in.readVarint();
+			if (TypedColumn.isIntegral(type)) {
+				long[] values = new long[size];
+				long last = 0;
+				for (int r = 0; r < size; r++) {
+					if ((nulls[r >>> 6] & 1L << r) == 0) {
+						last += unZigZag(in.readVarint());
+						values[r] = last;
+					}
+				}
+				columns[c] = new TypedColumn(type, size,
+						LongBuffer.wrap(values), null, nulls);
+			} else {
+				double[] values = new double[size];
+				for (int r = 0; r < size; r++) {
+					if ((nulls[r >>> 6] & 1L << r) == 0)
+						values[r] = Double.longBitsToDouble(in.readLong());
+				}
+				columns[c] = new TypedColumn(type, size, null,
+						DoubleBuffer.wrap(values), nulls);
+			}
+		}
+		return new TypedColumns(columns);
+	}
+
+	/*
+	 * per profile 0 if it is null, otherwise 1 + whether it is numeric, then the type as in
+	 * writeColumnTypes and the statistics
+	 */
+	private static void writeColumnProfiles(Output out,
+			ColumnProfile[] profiles) {
+		out.writeVarint(profiles.length);
+		for (ColumnProfile p : profiles) {
+			if (p == null) {
+				out.writeVarint(0);
+				continue;
+			}
+			boolean numeric = p.min != null && p.max != null && p.mean != null;
+			out.writeVarint(numeric ? 2 : 1);
+			writeColumnType(out, p.type);
+			out.writeVarint(p.numCells);
+			out.writeLong(Double.doubleToRawLongBits(p.nullFraction));
+			out.writeLong(Double.doubleToRawLongBits(p.avgLength));
+			out.writeVarint(p.distinct);
+			if (numeric) {
+				out.writeLong(Double.doubleToRawLongBits(p.min));
+				out.writeLong(Double.doubleToRawLongBits(p.max));
+				out.writeLong(Double.doubleToRawLongBits(p.mean));
+			}
+		}
+	}
+
+	private static ColumnProfile[] readColumnProfiles(Input in) {
+		ColumnProfile[] profiles = new ColumnProfile[in.readSize(in
+				.remaining())];
+		for (int i = 0; i < profiles.length; i++) {
+			int kind = (int) in.readVarint();
+			if (kind == 0)
+				continue;
+			ColumnProfile p = new ColumnProfile();
+			p.type = readColumnType(in);
+			p.numCells = (int) in.readVarint();
+			p.nullFraction = Double.longBitsToDouble(in.readLong());
+			p.avgLength = Double.longBitsToDouble(in.readLong());
+			p.distinct = in.readVarint();
+			if (kind == 2) {
+				p.min = Double.longBitsToDouble(in.readLong());
+				p.max = Double.longBitsToDouble(in.readLong());
+				p.mean = Double.longBitsToDouble(in.readLong());
+			}
+			profiles[i] = p;
+		}
+		return profiles;
+	}
+
+	/* 0 is null, 1 a name that follows, n > 1 the known type n - 2 */
+	private static void writeColumnTypes(Output out, String[] types) {
+		if (types == null) {
+			out.writeVarint(0);
+			return;
+		}
+		out.writeVarint(types.length + 1);
+		for (String t : types)
+			writeColumnType(out, t);
+	}
+
+	private static void writeColumnType(Output out, String t) {
+		Integer code = t == null ? null : COLUMN_TYPE_CODES.get(t);
+		if (t == null) {
+			out.writeVarint(0);
+		} else if (code != null) {
+			out.writeVarint(code + 2);
+		} else {
+			out.writeVarint(1);
+			writeString(out, t);
+		}
+	}
+
+	private static String[] readColumnTypes(Input in) {
+		int n = in.readSize(in.remaining() + 1) - 1;
+		if (n < 0)
+			return null;
+		String[] types = new String[n];
+		for (int i = 0; i < n; i++)
+			types[i] = readColumnType(in);
+		return types;
+	}
+
+	private static String readColumnType(Input in) {
+		int code = (int) in.readVarint();
+		if (code == 1)
+			return readString(in);
+		if (code > 1)
+			return COLUMN_TYPES[code - 2];
+		return null;
+	}
+
+	private static void writeStrings(Output out, String[] strings) {
+		if (strings == null) {
+			out.writeVarint(0);
+			return;
+		}
+		out.writeVarint(strings.length + 1);
+		for (String s : strings)
+			writeString(out, s);
+	}
+
+	private static String[] readStrings(Input in) {
+		int n = in.readSize(in.remaining() + 1) - 1;
+		if (n < 0)
+			return null;
+		String[] strings = new String[n];
+		for (int i = 0; i < n; i++)
+			strings[i] = readString(in);
+		return strings;
+	}
+
+	/*
+	 * Strings are written char by char in UTF-8 (surrogates individually, as in CESU-8), so that
+	 * any String round-trips, even one with unpaired surrogates. Prefixed with byte length + 1.
+	 */
+	private static void writeString(Output out, String s) {
+		if (s == null) {
+			out.writeVarint(0);
+			return;
+		}
+		int n = s.length();
+		int bytes = n;
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80)
+				bytes += c >= 0x800 ? 2 : 1;
+		}
+		out.writeVarint(bytes + 1);
+		out.ensure(bytes);
+		byte[] buf = out.buf;
+		int p = out.pos;
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buf[p++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[p++] = (byte) (0xc0 | c >> 6);
+				buf[p++] = (byte) (0x80 | c & 0x3f);
+			} else {
+				buf[p++] = (byte) (0xe0 | c >> 12);
+				buf[p++] = (byte) (0x80 | c >> 6 & 0x3f);
+				buf[p++] = (byte) (0x80 | c & 0x3f);
+			}
+		}
+		out.pos = p;
+	}
+
+	private static String readString(Input in) {
+		int bytes = in.readSize(in.remaining() + 1) - 1;
+		if (bytes < 0)
+			return null;
+		byte[] b = in.buf;
+		int p = in.pos;
+		int end = p + bytes;
+		char[] chars = new char[bytes];
+		int n = 0;
+		while (p < end) {
+			int c = b[p++] & 0xff;
+			if (c < 0x80) {
+				chars[n++] = (char) c;
+			} else if (c < 0xe0) {
+				chars[n++] = (char) ((c & 0x1f) << 6 | b[p++] & 0x3f);
+			} else {
+				chars[n++] = (char) ((c & 0x0f) << 12 | (b[p++] & 0x3f) << 6 | b[p++] & 0x3f);
+			}
+		}
+		in.pos = p;
+		return new String(chars, 0, n);
+	}
+
+	private static long zigZag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unZigZag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static class Output {
+		byte[] buf;
+		int pos = 0;
+
+		Output(int capacity) {
+			buf = new byte[capacity];
+		}
+
+		void ensure(int n) {
+			if (pos + n > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+		}
+
+		void writeByte(int b) {
+			ensure(1);
+			buf[pos++] = (byte) b;
+		}
+
+		void writeBytes(byte[] b, int off, int len) {
+			ensure(len);
+			System.arraycopy(b, off, buf, pos, len);
+			pos += len;
+		}
+
+		void writeLong(long v) {
+			ensure(8);
+			for (int i = 0; i < 8; i++) {
+				buf[pos++] = (byte) v;
+				v >>>= 8;
+			}
+		}
+
+		void writeVarint(long v) {
+			ensure(10);
+			while ((v & ~0x7fL) != 0) {
+				buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			buf[pos++] = (byte) v;
+		}
+	}
+
+	private static class Input {
+		final byte[] buf;
+		int pos;
+
+		Input(byte[] buf, int pos) {
+			this.buf = buf;
+			this.pos = pos;
+		}
+
+		long readLong() {
+			if (pos + 8 > buf.length)
+				throw new IndexOutOfBoundsException();
+			long v = 0;
+			for (int i = 0; i < 8; i++)
+				v |= (buf[pos++] & 0xffL) << (8 * i);
+			return v;
+		}
+
+		int remaining() {
+			return buf.length - pos;
+		}
+
+		/*
+		 * a count or length, which can't be negative and is bounded by what the remaining bytes can
+		 * hold, so that corrupt input never allocates huge or negative arrays
+		 */
+		int readSize(long max) {
+			long v = readVarint();
+			if (v < 0 || v > max || v > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("corrupt size " + v);
+			return (int) v;
+		}
+
+		long readVarint() {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = buf[pos++];
+				v |= (long) (b & 0x7f) << shift;
+				if (b >= 0)
+					return v;
+			}
+			throw new IllegalArgumentException("corrupt varint");
+		}
+	}
+
+}
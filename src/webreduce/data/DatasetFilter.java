@@ -0,0 +1,741 @@
+package webreduce.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+
+/*
+ * A predicate over the fields of a Dataset that can be evaluated on the raw (UTF-8) JSON of a table
+ * without deserializing it, so that iterators can drop tables before paying for the parse (see
+ * WebreduceIterator.setFilter). Filters are written in a small expression language:
+ *
+ *   url contains ".com", ".org" and (hasHeader or numCols > 8)
+ *   tableType = RELATION and headerPosition != FIRST_COLUMN and not hasHeader = null
+ *
+ * The predicates are "url contains" with one or more strings (any of them matches), "hasHeader"
+ * (true), "hasHeader = true|false|null", "tableType" and "headerPosition" with = or != and an
+ * enum constant or null, and "numCols" with one of = != < <= > >= and a number. They are combined
+ * with and, or, not and parentheses. Missing fields have the defaults of a new Dataset (a missing
+ * relation has 0 columns). On the raw JSON only the top-level fields the filter refers to are
+ * decoded, and scanning stops once all of them were seen. JSON the scanner doesn't understand
+ * matches, so that the full parser gets to report it.
+ */
+public class DatasetFilter {
+
+	private static final int URL = 1;
+	private static final int HAS_HEADER = 2;
+	private static final int TABLE_TYPE = 4;
+	private static final int HEADER_POSITION = 8;
+	private static final int NUM_COLS = 16;
+
+	private static final byte[][] KEYS = { bytes("url"), bytes("hasHeader"),
+			bytes("tableType"), bytes("headerPosition"), bytes("relation") };
+
+	private final Node root;
+	private final String expression;
+	private final ThreadLocal<RawFields> rawFields = new ThreadLocal<RawFields>() {
+		@Override
+		protected RawFields initialValue() {
+			return new RawFields();
+		}
+	};
+
+	private DatasetFilter(Node root, String expression) {
+		this.root = root;
+		this.expression = expression;
+	}
+
+	/* parses a filter expression, throws IllegalArgumentException if it is malformed */
+	public static DatasetFilter parse(String expression) {
+		Parser p = new Parser(expression);
+		Node root = p.parseOr();
+		if (p.peek() != null)
+			throw p.error("unexpected '" + p.peek() + "'");
+		return new DatasetFilter(root, expression);
+	}
+
+	/* a filter that matches when both this and other match */
+	public DatasetFilter and(DatasetFilter other) {
+		return new DatasetFilter(new And(root, other.root), "(" + expression
+				+ ") and (" + other.expression + ")");
+	}
+
+	public boolean matches(Dataset ds) {
+		return root.eval(ds);
+	}
+
+	/*
+	 * evaluates the filter on the JSON of a table, b[off, off + len); malformed JSON matches, so that
+	 * the table is left to the full parser
+	 */
+	public boolean matches(byte[] b, int off, int len) {
+		RawFields f = rawFields.get();
+		try {
+			if (!f.scan(b, off, off + len, root.fields()))
+				return true;
+			// strings are unescaped while evaluating
+			return root.eval(f);
+		} catch (IndexOutOfBoundsException e) {
+			return true;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(Charsets.UTF_8);
+	}
+
+	/*
+	 * The fields of one table as found in its JSON: strings as the range of their (still escaped)
+	 * content, -1 if missing or null.
+	 */
+	private static class RawFields {
+		byte[] b;
+		int urlStart, urlEnd, tableTypeStart, tableTypeEnd,
+				headerPositionStart, headerPositionEnd;
+		// -1 missing or null, 0 false, 1 true
+		int hasHeader;
+		int numCols;
+
+		/* false if the JSON is not understood */
+		boolean scan(byte[] b, int p, int end, int needed) {
+			this.b = b;
+			urlStart = urlEnd = tableTypeStart = tableTypeEnd = headerPositionStart = headerPositionEnd = -1;
+			hasHeader = -1;
+			numCols = 0;
+			p = skipWhitespace(b, p, end);
+			if (b[p++] != '{')
+				return false;
+			p = skipWhitespace(b, p, end);
+			if (b[p] == '}')
+				return true;
+			while (true) {
+				if (b[p] != '"')
+					return false;
+				int keyStart = p + 1;
+				p = skipString(b, p, end);
+				int key = key(b, keyStart, p - 1);
+				p = skipWhitespace(b, p, end);
+				if (b[p++] != ':')
+					return false;
+				p = skipWhitespace(b, p, end);
+				if ((needed & key) == 0) {
+					p = skipValue(b, p, end);
+				} else {
+					needed &= ~key;
+					p = readValue(key, b, p, end);
+					if (p < 0)
+						return false;
+					if (needed == 0)
+						return true;
+				}
+				p = skipWhitespace(b, p, end);
+				if (b[p] == '}')
+					return true;
+				if (b[p++] != ',')
+					return false;
+				p = skipWhitespace(b, p, end);
+			}
+		}
+
+		private int readValue(int key, byte[] b, int p, int end) {
+			if (b[p] == 'n')
+				return skipValue(b, p, end);
+			switch (key) {
+			case NUM_COLS:
+				if (b[p++] != '[')
+					return -1;
+				p = skipWhitespace(b, p, end);
+				if (b[p] == ']')
+					return p + 1;
+				while (true) {
+					p = skipWhitespace(b, skipValue(b, p, end), end);
+					numCols++;
+					if (b[p] == ']')
+						return p + 1;
+					if (b[p++] != ',')
+						return -1;
+					p = skipWhitespace(b, p, end);
+				}
+			case HAS_HEADER:
+				if (b[p] != 't' && b[p] != 'f')
+					return -1;
+				hasHeader = b[p] == 't' ? 1 : 0;
+				return skipValue(b, p, end);
+			default:
+				if (b[p] != '"')
+					return -1;
+				int start = p + 1;
+				p = skipString(b, p, end);
+				if (key == URL) {
+					urlStart = start;
+					urlEnd = p - 1;
+				} else if (key == TABLE_TYPE) {
+					tableTypeStart = start;
+					tableTypeEnd = p - 1;
+				} else {
+					headerPositionStart = start;
+					headerPositionEnd = p - 1;
+				}
+				return p;
+			}
+		}
+
+		private static int key(byte[] b, int start, int end) {
+			for (int k = 0; k < KEYS.length; k++) {
+				byte[] key = KEYS[k];
+				if (key.length == end - start
+						&& indexOf(b, start, end, key) == start)
+					return 1 << k;
+			}
+			return 0;
+		}
+	}
+
+	private static int skipWhitespace(byte[] b, int p, int end) {
+		while (p < end && (b[p] == ' ' || b[p] == '\n' || b[p] == '\r' || b[p] == '\t'))
+			p++;
+		if (p == end)
+			throw new IndexOutOfBoundsException();
+		return p;
+	}
+
+	/* p is at the opening quote, returns the position after the closing quote */
+	private static int skipString(byte[] b, int p, int end) {
+		if (++p >= end)
+			throw new IndexOutOfBoundsException();
+		while (true) {
+			byte c = b[p++];
+			if (c == '"')
+				return p;
+			if (c == '\\')
+				p++;
+			if (p >= end)
+				throw new IndexOutOfBoundsException();
+		}
+	}
+
+	/* returns the position after the value that starts at p */
+	private static int skipValue(byte[] b, int p, int end) {
+		byte c = b[p];
+		if (c == '"')
+			return skipString(b, p, end);
+		if (c != '[' && c != '{') {
+			// number or literal
+			while (p < end && b[p] != ',' && b[p] != '}' && b[p] != ']'
+					&& b[p] != ' ' && b[p] != '\n' && b[p] != '\r'
+					&& b[p] != '\t')
+				p++;
+			return p;
+		}
+		int depth = 0;
+		while (true) {
+			c = b[p];
+			if (c == '"') {
+				p = skipString(b, p, end);
+			} else {
+				if (c == '[' || c == '{') {
+					depth++;
+				} else if (c == ']' || c == '}') {
+					if (--depth == 0)
+						return p + 1;
+				}
+				p++;
+			}
+			if (p >= end)
+				throw new IndexOutOfBoundsException();
+		}
+	}
+
+	/* the first position of needle in b[start, end), -1 if there is none */
+	private static int indexOf(byte[] b, int start, int end, byte[] needle) {
+		int last = end - needle.length;
+		outer: for (int i = start; i <= last; i++) {
+			for (int j = 0; j < needle.length; j++) {
+				if (b[i + j] != needle[j])
+					continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static boolean isEscaped(byte[] b, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (b[i] == '\\')
+				return true;
+		}
+		return false;
+	}
+
+	/* the content of a JSON string that contains escapes */
+	private static String unescape(byte[] b, int start, int end) {
+		StringBuilder sb = new StringBuilder(end - start);
+		int run = start;
+		int p = start;
+		while (p < end) {
+			if (b[p] != '\\') {
+				p++;
+				continue;
+			}
+			sb.append(new String(b, run, p - run, Charsets.UTF_8));
+			char c = (char) b[p + 1];
+			p += 2;
+			switch (c) {
+			case 'b':
+				sb.append('\b');
+				break;
+			case 'f':
+				sb.append('\f');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'u':
+				if (p + 4 > end)
+					throw new NumberFormatException("truncated \\u escape");
+				sb.append((char) (hexDigit(b[p]) << 12 | hexDigit(b[p + 1]) << 8
+						| hexDigit(b[p + 2]) << 4 | hexDigit(b[p + 3])));
+				p += 4;
+				break;
+			default:
+				sb.append(c);
+			}
+			run = p;
+		}
+		sb.append(new String(b, run, end - run, Charsets.UTF_8));
+		return sb.toString();
+	}
+
+	private static int hexDigit(byte c) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		throw new NumberFormatException("not a hex digit: " + (char) c);
+	}
+
+	private static abstract class Node {
+		abstract boolean eval(Dataset ds);
+
+		abstract boolean eval(RawFields f);
+
+		/* the fields the node refers to */
+		abstract int fields();
+	}
+
+	private static class And extends Node {
+		private final Node left, right;
+
+		And(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		boolean eval(Dataset ds) {
+			return left.eval(ds) && right.eval(ds);
+		}
+
+		@Override
+		boolean eval(RawFields f) {
+			return left.eval(f) && right.eval(f);
+		}
+
+		@Override
+		int fields() {
+			return left.fields() | right.fields();
+		}
+	}
+
+	private static class Or extends Node {
+		private final Node left, right;
+
+		Or(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		boolean eval(Dataset ds) {
+			return left.eval(ds) || right.eval(ds);
+		}
+
+		@Override
+		boolean eval(RawFields f) {
+			return left.eval(f) || right.eval(f);
+		}
+
+		@Override
+		int fields() {
+			return left.fields() | right.fields();
+		}
+	}
+
+	private static class Not extends Node {
+		private final Node node;
+
+		Not(Node node) {
+			this.node = node;
+		}
+
+		@Override
+		boolean eval(Dataset ds) {
+			return !node.eval(ds);
+		}
+
+		@Override
+		boolean eval(RawFields f) {
+			return !node.eval(f);
+		}
+
+		@Override
+		int fields() {
+			return node.fields();
+		}
+	}
+
+	private static class UrlContains extends Node {
+		private final String[] needles;
+		private final byte[][] needleBytes;
+
+		UrlContains(List<String> needles) {
+			this.needles = needles.toArray(new String[needles.size()]);
+			this.needleBytes = new byte[this.needles.length][];
+			for (int i = 0; i < this.needles.length; i++)
+				needleBytes[i] = bytes(this.needles[i]);
+		}
+
+		@Override
+		boolean eval(Dataset ds) {
+			if (ds.url == null)
+				return false;
+			for (String needle : needles) {
+				if (ds.url.contains(needle))
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		boolean eval(RawFields f) {
+			if (f.urlStart < 0) {
+				// missing url field, the default is ""
+				for (String needle : needles) {
+					if (needle.isEmpty())
+						return true;
+				}
+				return false;
+			}
+			if (isEscaped(f.b, f.urlStart, f.urlEnd)) {
+				String url = unescape(f.b, f.urlStart, f.urlEnd);
+				for (String needle : needles) {
+					if (url.contains(needle))
+						return true;
+				}
+				return false;
+			}
+			for (byte[] needle : needleBytes) {
+				if (indexOf(f.b, f.urlStart, f.urlEnd, needle) >= 0)
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		int fields() {
+			return URL;
+		}
+	}
+
+	private static class HasHeaderIs extends Node {
+		private final Boolean value;
+
+		HasHeaderIs(Boolean value) {
+			this.value = value;
+		}
+
+		@Override
+		boolean eval(Dataset ds) {
+			return value == null ? ds.hasHeader == null : value
+					.equals(ds.hasHeader);
+		}
+
+		@Override
+		boolean eval(RawFields f) {
+			return f.hasHeader == (value == null ? -1 : value ? 1 : 0);
+		}
+
+		@Override
+		int fields() {
+			return HAS_HEADER;
+		}
+	}
+
+	private static class EnumIs extends Node {
+		private final int field;
+		private final Enum<?>[] constants;
+		private final Enum<?> value;
+		private final byte[] valueBytes;
+
+		EnumIs(int field, Enum<?>[] constants, Enum<?> value) {
+			this.field = field;
+			this.constants = constants;
+			this.value = value;
+			this.valueBytes = value == null ? null : bytes(value.name());
+		}
+
+		@Override
+		boolean eval(Dataset ds) {
+			return (field == TABLE_TYPE ? ds.tableType : ds.headerPosition) == value;
+		}
+
+		@Override
+		boolean eval(RawFields f) {
+			int start = field == TABLE_TYPE ? f.tableTypeStart
+					: f.headerPositionStart;
+			int end = field == TABLE_TYPE ? f.tableTypeEnd
+					: f.headerPositionEnd;
+			if (start < 0)
+				return value == null;
+			if (value != null && !isEscaped(f.b, start, end))
+				return end - start == valueBytes.length
+						&& indexOf(f.b, start, end, valueBytes) == start;
+			// like Gson, map unknown constants to null
+			String name = isEscaped(f.b, start, end) ? unescape(f.b, start,
+					end) : new String(f.b, start, end - start, Charsets.UTF_8);
+			for (Enum<?> c : constants) {
+				if (c.name().equals(name))
+					return c == value;
+			}
+			return value == null;
+		}
+
+		@Override
+		int fields() {
+			return field;
+		}
+	}
+
+	private static class NumColsCompare extends Node {
+		private final String op;
+		private final int value;
+
+		NumColsCompare(String op, int value) {
+			this.op = op;
+			this.value = value;
+		}
+
+		@Override
+		boolean eval(Dataset ds) {
+			return compare(ds.relation == null ? 0 : ds.relation.length);
+		}
+
+		@Override
+		boolean eval(RawFields f) {
+			return compare(f.numCols);
+		}
+
+		private boolean compare(int n) {
+			switch (op) {
+			case "=":
+				return n == value;
+			case "!=":
+				return n != value;
+			case "<":
+				return n < value;
+			case "<=":
+				return n <= value;
+			case ">":
+				return n > value;
+			default:
+				return n >= value;
+			}
+		}
+
+		@Override
+		int fields() {
+			return NUM_COLS;
+		}
+	}
+
+	/* recursive descent parser, "or" binds weaker than "and", which binds weaker than "not" */
+	private static class Parser {
+		private final String s;
+		private final List<String> tokens = new ArrayList<String>();
+		private final List<Integer> positions = new ArrayList<Integer>();
+		private int next = 0;
+
+		Parser(String s) {
+			this.s = s;
+			int p = 0;
+			while (p < s.length()) {
+				char c = s.charAt(p);
+				int start = p;
+				if (Character.isWhitespace(c)) {
+					p++;
+					continue;
+				} else if (c == '"' || c == '\'') {
+					p = s.indexOf(c, p + 1);
+					if (p < 0)
+						throw new IllegalArgumentException(
+								"unterminated string at position " + start
+										+ " of filter: " + s);
+					p++;
+				} else if (Character.isLetterOrDigit(c) || c == '_') {
+					while (p < s.length()
+							&& (Character.isLetterOrDigit(s.charAt(p)) || s
+									.charAt(p) == '_'))
+						p++;
+				} else if ((c == '<' || c == '>' || c == '!')
+						&& p + 1 < s.length() && s.charAt(p + 1) == '=') {
+					p += 2;
+				} else {
+					p++;
+				}
+				tokens.add(s.substring(start, p));
+				positions.add(start);
+			}
+		}
+
+		String peek() {
+			return next < tokens.size() ? tokens.get(next) : null;
+		}
+
+		String take() {
+			if (next == tokens.size())
+				throw error("unexpected end");
+			return tokens.get(next++);
+		}
+
+		boolean accept(String token) {
+			if (token.equals(peek())) {
+				next++;
+				return true;
+			}
+			return false;
+		}
+
+		IllegalArgumentException error(String message) {
+			int position = next < positions.size() ? positions.get(next) : s
+					.length();
+			return new IllegalArgumentException(message + " at position "
+					+ position + " of filter: " + s);
+		}
+
+		Node parseOr() {
+			Node node = parseAnd();
+			while (accept("or"))
+				node = new Or(node, parseAnd());
+			return node;
+		}
+
+		Node parseAnd() {
+			Node node = parseNot();
+			while (accept("and"))
+				node = new And(node, parseNot());
+			return node;
+		}
+
+		Node parseNot() {
+			if (accept("not"))
+				return new Not(parseNot());
+			if (accept("(")) {
+				Node node = parseOr();
+				if (!accept(")"))
+					throw error("expected ')'");
+				return node;
+			}
+			return parsePredicate();
+		}
+
+		Node parsePredicate() {
+			String field = take();
+			switch (field) {
+			case "url":
+				if (!accept("contains"))
+					throw error("expected 'contains'");
+				List<String> needles = new ArrayList<String>();
+				do {
+					needles.add(string());
+				} while (accept(","));
+				return new UrlContains(needles);
+			case "hasHeader":
+				if (!"=".equals(peek()) && !"!=".equals(peek()))
+					return new HasHeaderIs(true);
+				boolean equal = take().equals("=");
+				String v = take();
+				Boolean value;
+				if (v.equals("null"))
+					value = null;
+				else if (v.equals("true") || v.equals("false"))
+					value = Boolean.valueOf(v);
+				else
+					throw error("expected true, false or null");
+				Node node = new HasHeaderIs(value);
+				return equal ? node : new Not(node);
+			case "tableType":
+				return enumIs(TABLE_TYPE, TableType.class);
+			case "headerPosition":
+				return enumIs(HEADER_POSITION, HeaderPosition.class);
+			case "numCols":
+				String op = take();
+				if (!op.equals("=") && !op.equals("!=") && !op.equals("<")
+						&& !op.equals("<=") && !op.equals(">")
+						&& !op.equals(">="))
+					throw error("expected a comparison");
+				try {
+					return new NumColsCompare(op, Integer.parseInt(take()));
+				} catch (NumberFormatException e) {
+					next--;
+					throw error("expected a number");
+				}
+			default:
+				next--;
+				throw error("unknown field '" + field + "'");
+			}
+		}
+
+		private <E extends Enum<E>> Node enumIs(int field, Class<E> type) {
+			String op = take();
+			if (!op.equals("=") && !op.equals("!="))
+				throw error("expected = or !=");
+			String name = take();
+			E value = null;
+			if (!name.equals("null")) {
+				try {
+					value = Enum.valueOf(type, name);
+				} catch (IllegalArgumentException e) {
+					next--;
+					throw error("unknown " + type.getSimpleName() + " '"
+							+ name + "'");
+				}
+			}
+			Node node = new EnumIs(field, type.getEnumConstants(), value);
+			return op.equals("=") ? node : new Not(node);
+		}
+
+		private String string() {
+			String t = take();
+			if (t.length() < 2 || (t.charAt(0) != '"' && t.charAt(0) != '\''))
+				throw error("expected a quoted string");
+			return t.substring(1, t.length() - 1);
+		}
+	}
+
+}
@@ -0,0 +1,250 @@
+package webreduce.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import webreduce.typing.ColumnProfile;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/*
+ * Streaming decoder for Datasets that only materializes a projection of the fields, e.g.
+ * DatasetProjection.of(Field.URL, Field.HEADER_ROW). The JSON subtrees of all other fields are
+ * skipped without being allocated, and parsing stops as soon as all projected fields were read.
+ * Fields that are not part of the projection keep the default values of a new Dataset.
+ */
+public class DatasetProjection {
+
+	public enum Field {
+		RELATION, // the full relation
+		HEADER_ROW, // only the first row of the relation, i.e. relation[i] = { attribute_i }, null and empty columns stay as they are
+		PAGE_TITLE, TITLE, URL, HAS_HEADER, HEADER_POSITION, TABLE_TYPE, TERM_SET, TABLE_NUM, S3_LINK, RECORD_END_OFFSET, RECORD_OFFSET, COLUMN_TYPES, COLUMN_PROFILES, URL_TERM_SET, TITLE_TERM_SET, DOMAIN
+	}
+
+	private final EnumSet<Field> fields;
+	private final int numJsonFields;
+
+	private DatasetProjection(EnumSet<Field> fields) {
+		if (fields.contains(Field.RELATION))
+			fields.remove(Field.HEADER_ROW);
+		this.fields = fields;
+		this.numJsonFields = fields.size();
+	}
+
+	public static DatasetProjection of(Field first, Field... rest) {
+		return new DatasetProjection(EnumSet.of(first, rest));
+	}
+
+	public boolean contains(Field field) {
+		return fields.contains(field);
+	}
+
+	public Dataset fromJson(String json) {
+		return fromJson(new StringReader(json));
+	}
+
+	public Dataset fromJson(InputStream jsonIn) {
+		return fromJson(new InputStreamReader(jsonIn, Dataset.utf8));
+	}
+
+	public Dataset fromJson(Reader jsonIn) {
+		try {
+			return read(new JsonReader(jsonIn));
+		} catch (IOException e) {
+			throw new JsonParseException(e);
+		} catch (IllegalStateException e) {
+			throw new JsonParseException(e);
+		}
+	}
+
+	private Dataset read(JsonReader in) throws IOException {
+		Dataset ds = new Dataset();
+		int remaining = numJsonFields;
+		in.beginObject();
+		while (remaining > 0 && in.hasNext()) {
+			Field field = fieldFor(in.nextName());
+			if (field == null || !fields.contains(field)) {
+				in.skipValue();
+				continue;
+			}
+			remaining--;
+			switch (field) {
+			case RELATION:
+				ds.relation = readRelation(in, false);
+				break;
+			case HEADER_ROW:
+				ds.relation = readRelation(in, true);
+				break;
+			case PAGE_TITLE:
+				ds.pageTitle = readString(in);
+				break;
+			case TITLE:
+				ds.title = readString(in);
+				break;
+			case URL:
+				ds.url = readString(in);
+				break;
+			case HAS_HEADER:
+				if (in.peek() == JsonToken.NULL) {
+					in.nextNull();
+					ds.hasHeader = null;
+				} else {
+					ds.hasHeader = in.nextBoolean();
+				}
+				break;
+			case HEADER_POSITION:
+				ds.headerPosition = readEnum(in, HeaderPosition.class);
+				break;
+			case TABLE_TYPE:
+				ds.tableType = readEnum(in, TableType.class);
+				break;
+			case TERM_SET:
+				ds.termSet = readStringArray(in);
+				break;
+			case TABLE_NUM:
+				ds.tableNum = in.nextInt();
+				break;
+			case S3_LINK:
+				ds.s3Link = readString(in);
+				break;
+			case RECORD_END_OFFSET:
+				ds.recordEndOffset = in.nextLong();
+				break;
+			case RECORD_OFFSET:
+				ds.recordOffset = in.nextLong();
+				break;
+			case COLUMN_TYPES:
+				ds.columnTypes = readStringArray(in);
+				break;
+			case COLUMN_PROFILES:
+				ds.columnProfiles = Dataset.gson.fromJson(in,
+						ColumnProfile[].class);
+				break;
+			case URL_TERM_SET:
+				ds.urlTermSet = readStringArray(in);
+				break;
+			case TITLE_TERM_SET:
+				ds.titleTermSet = readStringArray(in);
+				break;
+			case DOMAIN:
+				ds.domain = readString(in);
+				break;
+			}
+		}
+		// the rest of the document is never looked at
+		return ds;
+	}
+
+	/* maps JSON field names (which are the Java field names of Dataset) to projection fields */
+	private Field fieldFor(String name) {
+		switch (name) {
+		case "relation":
+			return fields.contains(Field.HEADER_ROW) ? Field.HEADER_ROW
+					: Field.RELATION;
+		case "pageTitle":
+			return Field.PAGE_TITLE;
+		case "title":
+			return Field.TITLE;
+		case "url":
+			return Field.URL;
+		case "hasHeader":
+			return Field.HAS_HEADER;
+		case "headerPosition":
+			return Field.HEADER_POSITION;
+		case "tableType":
+			return Field.TABLE_TYPE;
+		case "termSet":
+			return Field.TERM_SET;
+		case "tableNum":
+			return Field.TABLE_NUM;
+		case "s3Link":
+			return Field.S3_LINK;
+		case "recordEndOffset":
+			return Field.RECORD_END_OFFSET;
+		case "recordOffset":
+			return Field.RECORD_OFFSET;
+		case "columnTypes":
+			return Field.COLUMN_TYPES;
+		case "columnProfiles":
+			return Field.COLUMN_PROFILES;
+		case "urlTermSet":
+			return Field.URL_TERM_SET;
+		case "titleTermSet":
+			return Field.TITLE_TERM_SET;
+		case "domain":
+			return Field.DOMAIN;
+		default:
+			return null;
+		}
+	}
+
+	private static String[][] readRelation(JsonReader in, boolean headerOnly)
+			throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		List<String[]> columns = new ArrayList<String[]>();
+		in.beginArray();
+		while (in.hasNext()) {
+			if (!headerOnly || in.peek() == JsonToken.NULL) {
+				columns.add(readStringArray(in));
+				continue;
+			}
+			in.beginArray();
+			// like Dataset.fromJson, an empty column stays empty
+			String[] column = new String[in.hasNext() ? 1 : 0];
+			if (column.length > 0)
+				column[0] = readString(in);
+			while (in.hasNext())
+				in.skipValue();
+			in.endArray();
+			columns.add(column);
+		}
+		in.endArray();
+		return columns.toArray(new String[columns.size()][]);
+	}
+
+	private static String[] readStringArray(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		List<String> values = new ArrayList<String>();
+		in.beginArray();
+		while (in.hasNext())
+			values.add(readString(in));
+		in.endArray();
+		return values.toArray(new String[values.size()]);
+	}
+
+	private static String readString(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		return in.nextString();
+	}
+
+	/* like Gson, maps unknown constants to null */
+	private static <E extends Enum<E>> E readEnum(JsonReader in, Class<E> type)
+			throws IOException {
+		String name = readString(in);
+		if (name == null)
+			return null;
+		try {
+			return Enum.valueOf(type, name);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+}
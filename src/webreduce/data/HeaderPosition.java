@@ -2,6 +2,7 @@ package webreduce.data;
 
 import java.io.Serializable;
 
+/* stored by DatasetCodec with the codes of its HEADER_POSITIONS, new constants need to be appended there */
 public enum HeaderPosition implements Serializable {
 	FIRST_ROW,
 	FIRST_COLUMN,
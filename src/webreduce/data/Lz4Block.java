@@ -0,0 +1,150 @@
+package webreduce.data;
+
+import java.util.Arrays;
+
+/*
+ * Compressor and decompressor for the LZ4 block format (sequences of literals and back
+ * references of up to 64 KB, no frame header or checksum). The compressor uses a single hash table
+ * probe per position, which is fast and good enough for the repetitive text of tables.
+ */
+class Lz4Block {
+
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 65535;
+	// the last match must start this many bytes before the end, the last 5 bytes are literals
+	private static final int MF_LIMIT = 12;
+	private static final int LAST_LITERALS = 5;
+	private static final int HASH_LOG = 12;
+
+	private Lz4Block() {
+	}
+
+	static byte[] compress(byte[] src, int len) {
+		byte[] dst = new byte[len + len / 255 + 16];
+		int op = 0;
+		int anchor = 0;
+		if (len > MF_LIMIT) {
+			int[] table = new int[1 << HASH_LOG];
+			Arrays.fill(table, -1);
+			int ip = 0;
+			int mfLimit = len - MF_LIMIT;
+			int matchLimit = len - LAST_LITERALS;
+			while (ip < mfLimit) {
+				int seq = readInt(src, ip);
+				int h = (seq * -1640531535) >>> (32 - HASH_LOG);
+				int ref = table[h];
+				table[h] = ip;
+				if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+					ip++;
+					continue;
+				}
+				while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+					ip--;
+					ref--;
+				}
+				int matchLen = MIN_MATCH;
+				while (ip + matchLen < matchLimit
+						&& src[ip + matchLen] == src[ref + matchLen])
+					matchLen++;
+				op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref,
+						matchLen);
+				ip += matchLen;
+				anchor = ip;
+			}
+		}
+		op = writeSequence(dst, op, src, anchor, len - anchor, 0, 0);
+		return Arrays.copyOf(dst, op);
+	}
+
+	/* writes a sequence, or only literals if matchLen is 0 (the last sequence) */
+	private static int writeSequence(byte[] dst, int op, byte[] src,
+			int litStart, int litLen, int offset, int matchLen) {
+		int tokenPos = op++;
+		int token = Math.min(litLen, 15) << 4;
+		if (litLen >= 15)
+			op = writeLength(dst, op, litLen - 15);
+		System.arraycopy(src, litStart, dst, op, litLen);
+		op += litLen;
+		if (matchLen > 0) {
+			dst[op++] = (byte) offset;
+			dst[op++] = (byte) (offset >>> 8);
+			int m = matchLen - MIN_MATCH;
+			token |= Math.min(m, 15);
+			if (m >= 15)
+				op = writeLength(dst, op, m - 15);
+		}
+		dst[tokenPos] = (byte) token;
+		return op;
+	}
+
+	private static int writeLength(byte[] dst, int op, int len) {
+		while (len >= 255) {
+			dst[op++] = (byte) 255;
+			len -= 255;
+		}
+		dst[op++] = (byte) len;
+		return op;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16
+				| (b[i + 3] & 0xff) << 24;
+	}
+
+	/* decompresses src[off, off + len) into a new array of exactly originalLen bytes */
+	static byte[] decompress(byte[] src, int off, int len, int originalLen) {
+		// a byte of the block expands to at most 255 bytes
+		if (originalLen < 0 || originalLen > (long) len * 255 + 15)
+			throw new IllegalArgumentException("corrupt LZ4 block");
+		byte[] dst = new byte[originalLen];
+		int ip = off;
+		int end = off + len;
+		int op = 0;
+		try {
+			while (ip < end) {
+				int token = src[ip++] & 0xff;
+				int litLen = token >>> 4;
+				if (litLen == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						litLen += b;
+					} while (b == 255);
+				}
+				System.arraycopy(src, ip, dst, op, litLen);
+				ip += litLen;
+				op += litLen;
+				if (ip >= end)
+					break;
+				int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+				ip += 2;
+				int matchLen = token & 15;
+				if (matchLen == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						matchLen += b;
+					} while (b == 255);
+				}
+				matchLen += MIN_MATCH;
+				int ref = op - offset;
+				if (offset == 0 || ref < 0)
+					throw new IllegalArgumentException("corrupt LZ4 block");
+				if (offset >= matchLen) {
+					System.arraycopy(dst, ref, dst, op, matchLen);
+				} else {
+					// byte by byte, the match overlaps the bytes it produces
+					for (int i = 0; i < matchLen; i++)
+						dst[op + i] = dst[ref + i];
+				}
+				op += matchLen;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("corrupt LZ4 block", e);
+		}
+		if (op != originalLen)
+			throw new IllegalArgumentException("corrupt LZ4 block");
+		return dst;
+	}
+
+}
@@ -2,6 +2,7 @@ package webreduce.data;
 
 import java.io.Serializable;
 
+/* stored by DatasetCodec with the codes of its TABLE_TYPES, new constants need to be appended there */
 public enum TableType implements Serializable {
 	LAYOUT,
 	RELATION,
@@ -0,0 +1,202 @@
+package webreduce.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import webreduce.typing.CellNumbers;
+import webreduce.typing.DataType;
+
+/*
+ * The values of a numeric column as primitives: INTEGER and LONG columns as longs, DOUBLE and
+ * CURRENCY columns as doubles, with a bitmap of the rows without a value. Rows are those of the
+ * relation column, so row 0 (the attribute) never has a value, neither have cells that don't
+ * parse as a number of the column's type.
+ *
+ * A cell's value is its first number, see CellNumbers. A fraction in an integral column makes the
+ * cell null rather than rounding it, so does a number of more than 18 digits, which also keeps
+ * Long.MIN_VALUE free as the sentinel of CellNumbers.parseLong (-9223372036854775808 is null).
+ *
+ * Values are held in buffers, either wrapping arrays on the heap or direct (off-heap), see
+ * toDirect(). Null rows hold 0. Columns are immutable.
+ */
+public final class TypedColumn {
+
+	private final DataType type;
+	private final int size;
+	private final LongBuffer longs;
+	private final DoubleBuffer doubles;
+	// bit r is set if row r has no value
+	private final long[] nulls;
+	private final int nullCount;
+
+	TypedColumn(DataType type, int size, LongBuffer longs,
+			DoubleBuffer doubles, long[] nulls) {
+		this.type = type;
+		this.size = size;
+		this.longs = longs;
+		this.doubles = doubles;
+		this.nulls = nulls;
+		int count = 0;
+		for (long word : nulls)
+			count += Long.bitCount(word);
+		this.nullCount = count;
+	}
+
+	/* true for the types that have a typed column */
+	public static boolean isNumeric(DataType type) {
+		return type == DataType.INTEGER || type == DataType.LONG
+				|| type == DataType.DOUBLE || type == DataType.CURRENCY;
+	}
+
+	static boolean isIntegral(DataType type) {
+		return type == DataType.INTEGER || type == DataType.LONG;
+	}
+
+	/* the values of the cells of column, which is of the given numeric type */
+	public static TypedColumn parse(DataType type, String[] column) {
+		if (!isNumeric(type))
+			throw new IllegalArgumentException("not a numeric type: " + type);
+		int n = column.length;
+		long[] nulls = new long[(n + 63) >>> 6];
+		if (n > 0)
+			nulls[0] = 1;
+		if (isIntegral(type)) {
+			long[] values = new long[n];
+			for (int r = 1; r < n; r++) {
+				long v = CellNumbers.parseLong(column[r]);
+				if (v == CellNumbers.NO_LONG)
+					nulls[r >>> 6] |= 1L << r;
+				else
+					values[r] = v;
+			}
+			return new TypedColumn(type, n, LongBuffer.wrap(values), null,
+					nulls);
+		}
+		double[] values = new double[n];
+		for (int r = 1; r < n; r++) {
+			double v = CellNumbers.parseDouble(column[r]);
+			if (Double.isNaN(v))
+				nulls[r >>> 6] |= 1L << r;
+			else
+				values[r] = v;
+		}
+		return new TypedColumn(type, n, null, DoubleBuffer.wrap(values), nulls);
+	}
+
+	public DataType getType() {
+		return type;
+	}
+
+	/* true if the values are longs, false if they are doubles */
+	public boolean isIntegral() {
+		return longs != null;
+	}
+
+	/* the number of rows, the attribute row included */
+	public int size() {
+		return size;
+	}
+
+	public boolean isNull(int row) {
+		if (row < 0 || row >= size)
+			throw new IndexOutOfBoundsException("row " + row + " of " + size);
+		return (nulls[row >>> 6] & 1L << row) != 0;
+	}
+
+	public int getNullCount() {
+		return nullCount;
+	}
+
+	/* the value of an integral column, 0 for null rows */
+	public long getLong(int row) {
+		if (longs == null)
+			throw new IllegalStateException("not an integral column: " + type);
+		return longs.get(row);
+	}
+
+	/* the value of any column, 0 for null rows */
+	public double getDouble(int row) {
+		return longs != null ? longs.get(row) : doubles.get(row);
+	}
+
+	/* the values of an integral column, null otherwise; an array if hasArray() */
+	public LongBuffer getLongs() {
+		return longs == null ? null : longs.duplicate();
+	}
+
+	/* the values of a double column, null otherwise; an array if hasArray() */
+	public DoubleBuffer getDoubles() {
+		return doubles == null ? null : doubles.duplicate();
+	}
+
+	/* the null bitmap, bit r of word r / 64 is set if row r has no value; must not be modified */
+	public long[] getNulls() {
+		return nulls;
+	}
+
+	public boolean isDirect() {
+		return longs != null ? longs.isDirect() : doubles.isDirect();
+	}
+
+	/* this column with its values in a direct buffer, outside of the heap */
+	public TypedColumn toDirect() {
+		if (isDirect())
+			return this;
+		ByteBuffer direct = ByteBuffer.allocateDirect(size * 8).order(
+				ByteOrder.nativeOrder());
+		if (longs != null) {
+			LongBuffer values = direct.asLongBuffer();
+			values.put(longs.duplicate());
+			values.clear();
+			return new TypedColumn(type, size, values, null, nulls);
+		}
+		DoubleBuffer values = direct.asDoubleBuffer();
+		values.put(doubles.duplicate());
+		values.clear();
+		return new TypedColumn(type, size, null, values, nulls);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(type.Name).append('[');
+		for (int r = 0; r < size; r++) {
+			if (r > 0)
+				sb.append(", ");
+			if (isNull(r))
+				sb.append("null");
+			else if (longs != null)
+				sb.append(longs.get(r));
+			else
+				sb.append(doubles.get(r));
+		}
+		return sb.append(']').toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof TypedColumn))
+			return false;
+		TypedColumn other = (TypedColumn) o;
+		if (type != other.type || size != other.size
+				|| !Arrays.equals(nulls, other.nulls))
+			return false;
+		for (int r = 0; r < size; r++) {
+			if (isNull(r))
+				continue;
+			if (longs != null ? longs.get(r) != other.longs.get(r) : Double
+					.doubleToLongBits(doubles.get(r)) != Double
+					.doubleToLongBits(other.doubles.get(r)))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return type.hashCode() * 31 + Arrays.hashCode(nulls);
+	}
+
+}
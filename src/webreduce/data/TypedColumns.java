@@ -0,0 +1,72 @@
+package webreduce.data;
+
+import webreduce.typing.DataType;
+import webreduce.typing.Types;
+
+/*
+ * The numeric columns of a table as TypedColumns, so that numeric analyses read primitives
+ * instead of parsing the cells again. Columns are typed by the table's columnTypes if it has them
+ * (as set by the Indexer's preprocessing), otherwise with Types.columnType. Get it with
+ * Dataset.getTypedColumns(), which computes it once per table, or from a stored full result that
+ * was encoded with it (see DatasetCodec).
+ */
+public final class TypedColumns {
+
+	// null for the columns that are not numeric
+	private final TypedColumn[] columns;
+
+	TypedColumns(TypedColumn[] columns) {
+		this.columns = columns;
+	}
+
+	/* computes the typed columns of the table, without caching them, see Dataset.getTypedColumns() */
+	public static TypedColumns of(Dataset ds) {
+		String[][] relation = ds.relation;
+		if (relation == null)
+			return new TypedColumns(new TypedColumn[0]);
+		String[] types = ds.columnTypes;
+		if (types != null && types.length != relation.length)
+			types = null;
+		TypedColumn[] columns = new TypedColumn[relation.length];
+		for (int c = 0; c < relation.length; c++) {
+			String[] column = relation[c];
+			if (column == null)
+				continue;
+			DataType type = types == null ? null : DataType.byString(types[c]);
+			if (type == null)
+				type = Types.columnType(column, 1, column.length);
+			if (TypedColumn.isNumeric(type))
+				columns[c] = TypedColumn.parse(type, column);
+		}
+		return new TypedColumns(columns);
+	}
+
+	public int getNumCols() {
+		return columns.length;
+	}
+
+	/* the typed column c, null if it is not numeric */
+	public TypedColumn get(int c) {
+		return columns[c];
+	}
+
+	public int getNumTypedColumns() {
+		int n = 0;
+		for (TypedColumn column : columns) {
+			if (column != null)
+				n++;
+		}
+		return n;
+	}
+
+	/* these columns with their values outside of the heap, see TypedColumn.toDirect() */
+	public TypedColumns toDirect() {
+		TypedColumn[] direct = new TypedColumn[columns.length];
+		for (int c = 0; c < columns.length; c++) {
+			if (columns[c] != null)
+				direct[c] = columns[c].toDirect();
+		}
+		return new TypedColumns(direct);
+	}
+
+}
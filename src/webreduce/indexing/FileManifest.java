@@ -0,0 +1,113 @@
+package webreduce.indexing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/*
+ * The corpus files an index was built from, with their size, modification time and checksum, so
+ * that an incremental run indexes only new and changed files. The checksum is only computed when
+ * size or modification time differ from the manifest, so unchanged files are not read at all.
+ *
+ * Entries of files about to be indexed stay pending until commit(), which is called after the
+ * index commit that covers the files. Stored as lines "<size>\t<mtime>\t<crc32>\t<path>".
+ */
+public class FileManifest {
+
+	private static class Entry {
+		final long size;
+		final long lastModified;
+		final String checksum;
+
+		Entry(long size, long lastModified, String checksum) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.checksum = checksum;
+		}
+	}
+
+	public enum Status {
+		UNCHANGED, CHANGED, NEW
+	}
+
+	private final File file;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final Map<String, Entry> pending = new HashMap<String, Entry>();
+
+	private FileManifest(File file) {
+		this.file = file;
+	}
+
+	/* loads the manifest, an empty one if the file does not exist */
+	public static FileManifest load(File file) throws IOException {
+		FileManifest manifest = new FileManifest(file);
+		if (!file.exists())
+			return manifest;
+		for (String line : FileUtils.readLines(file, Charsets.UTF_8.name())) {
+			String[] parts = line.split("\t", 4);
+			if (parts.length < 4)
+				continue;
+			manifest.entries.put(parts[3], new Entry(Long.parseLong(parts[0]),
+					Long.parseLong(parts[1]), parts[2]));
+		}
+		return manifest;
+	}
+
+	/*
+	 * compares the file to its manifest entry, the new state of a changed or new file stays
+	 * pending until the file is committed
+	 */
+	public synchronized Status check(File f) throws IOException {
+		Entry old = entries.get(f.getPath());
+		if (old != null && old.size == f.length()
+				&& old.lastModified == f.lastModified())
+			return Status.UNCHANGED;
+		Entry current = new Entry(f.length(), f.lastModified(), checksum(f));
+		if (old != null && old.size == current.size
+				&& old.checksum.equals(current.checksum)) {
+			// only touched, remember the new time to not compute the checksum again
+			entries.put(f.getPath(), current);
+			return Status.UNCHANGED;
+		}
+		pending.put(f.getPath(), current);
+		return old == null ? Status.NEW : Status.CHANGED;
+	}
+
+	/* records the given files as indexed and saves the manifest */
+	public synchronized void commit(Collection<File> files) throws IOException {
+		for (File f : files) {
+			Entry e = pending.remove(f.getPath());
+			if (e != null)
+				entries.put(f.getPath(), e);
+		}
+		save();
+	}
+
+	private void save() throws IOException {
+		List<String> lines = new ArrayList<String>(entries.size());
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			Entry v = e.getValue();
+			lines.add(v.size + "\t" + v.lastModified + "\t" + v.checksum + "\t"
+					+ e.getKey());
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		FileUtils.writeLines(tmp, Charsets.UTF_8.name(), lines);
+		if ((file.exists() && !file.delete()) || !tmp.renameTo(file))
+			throw new IOException("Could not write " + file);
+	}
+
+	private static String checksum(File f) throws IOException {
+		return Files.hash(f, Hashing.crc32()).toString();
+	}
+
+}
@@ -2,43 +2,76 @@ package webreduce.indexing;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleField;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 
+import webreduce.cleaning.Analysis;
+import webreduce.cleaning.AnalysisContext;
 import webreduce.cleaning.CustomAnalyzer;
 import webreduce.data.Dataset;
+import webreduce.data.DatasetCodec;
+import webreduce.data.DatasetFilter;
+import webreduce.iterator.IndexShards;
+import webreduce.iterator.Record;
 import webreduce.iterator.WebreduceIterator;
+import webreduce.typing.ColumnProfile;
+import webreduce.typing.ColumnProfiler;
 import webreduce.typing.Types;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.net.InternetDomainName;
 import com.google.common.primitives.Longs;
+import com.martiansoftware.jsap.FlaggedOption;
 import com.martiansoftware.jsap.JSAP;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import com.martiansoftware.jsap.Switch;
 import com.martiansoftware.jsap.UnflaggedOption;
 
+import org.apache.commons.io.FileUtils;
 import org.iq80.leveldb.*;
 
 import static org.fusesource.leveldbjni.JniDBFactory.*;
@@ -51,30 +84,143 @@ public class Indexer extends WebreduceIterator {
 
 	// index only tables that contained <th> tags in the original HTML
 	protected static final String HEADERED_TABLES_ONLY = "headeredTablesOnly";
+	// index only tables matching this DatasetFilter expression, e.g. "numCols > 2"
+	protected static final String FILTER = "filter";
+	// tables of other domains are never indexed
+	protected static final String DOMAIN_FILTER = "url contains \".com\", \".net\", \".org\", \".uk\"";
 
 	// store the original data as a stored field in the index
 	protected static final String STORE_FULL_RESULT = "storeFullResult";
 	// store the original data as in a leveldb
 	protected static final String STORE_FULL_RESULT_IN_LEVELDB = "storeFullResultInLevelDB";
 
+	// store full results in the compact binary format of DatasetCodec instead of JSON
+	protected static final String BINARY_FULL_RESULT = "binaryFullResult";
+	// LZ4 compress binary full results
+	protected static final String COMPRESS_FULL_RESULT = "compressFullResult";
+	// store the numeric columns as primitives with binary full results (see TypedColumns)
+	protected static final String TYPED_FULL_RESULT = "typedFullResult";
+
+	// add DocValues fields for faceting and aggregation (see TableFacets), implies the preprocessing
+	protected static final String FACETS = "facets";
+	public static final String NUM_COLS = "numCols";
+	public static final String NUM_ROWS = "numRows";
+	public static final String DOMAIN = "domain";
+	public static final String HAS_HEADER = "hasHeader";
+	public static final String HEADER_POSITION = "headerPosition";
+	public static final String TABLE_TYPE = "tableType";
+	public static final String COLUMN_TYPES = "columnTypes";
+
+	// profile the columns while typing them (see ColumnProfiler), store the profiles with the full
+	// results and index them as numeric fields with one value per column, for range queries like
+	// NumericRangeQuery.newDoubleRange(COLUMN_MAX, 1000.0, null, true, true); implies the
+	// preprocessing
+	protected static final String PROFILES = "profiles";
+	public static final String COLUMN_NULL_FRACTION = "columnNullFraction";
+	public static final String COLUMN_AVG_LENGTH = "columnAvgLength";
+	public static final String COLUMN_DISTINCT = "columnDistinct";
+	// numeric columns only
+	public static final String COLUMN_MIN = "columnMin";
+	public static final String COLUMN_MAX = "columnMax";
+	public static final String COLUMN_MEAN = "columnMean";
+
 	// activate preprocessing (analysis of title, terms and, column typing, domain from url extraction)
 	protected static final String PREPROCESSING = "preprocessing";
 
+	// keep a checkpoint journal in the output path, so that an interrupted run can be resumed
+	protected static final String CHECKPOINT = "checkpoint";
+
+	// files are recorded as done in the checkpoint journal with an index commit every that many files
+	protected static final int CHECKPOINT_COMMIT_FILES = 10;
+	// field holding the corpus file a document stems from, used to discard partial files on resume
+	protected static final String SOURCE_FILE = "source_file";
+
+	// index only new and changed corpus files, see FileManifest
+	protected static final String INCREMENTAL = "incremental";
+	// stable identifier of a table, see Dataset.getTableId()
+	protected static final String TABLE_ID = "table_id";
+
+	// write that many independent index shards, the worker threads are spread over them
+	protected static final String SHARDS = "shards";
+	// do not merge the shards into one index at the end, but leave a manifest (see IndexShards)
+	protected static final String KEEP_SHARDS = "keepShards";
+
+	// shards are written in bulk and merged at the end, so flush big segments and merge little;
+	// the buffer is shared by all shards, but never more than a quarter of the heap
+	protected static final double SHARDS_RAM_BUFFER_MB = 1024;
+	protected static final double SHARD_SEGMENTS_PER_TIER = 20;
+
+	// full results are written to the leveldb in batches of about that many bytes per worker
+	protected static final int LEVELDB_BATCH_BYTES = 4 * 1024 * 1024;
+	// leveldb keys are handed to the workers in ranges of that many keys
+	protected static final int LEVELDB_KEY_RANGE = 1 << 16;
+
+	// bounds of the preprocessing caches (hosts and domains, URL paths and titles and their terms)
+	protected static final int DOMAIN_CACHE_SIZE = 100000;
+	protected static final int TERM_CACHE_SIZE = 100000;
+
 	protected final JSAPResult config;
+	// the tables to index, also applied to the raw records before they are parsed
+	protected final DatasetFilter filter;
 	protected final Analyzer analyzer = new CustomAnalyzer();
 	protected final Joiner joiner;
+	// the single index writer, or the one the shards are merged into (null with keepShards)
 	protected final IndexWriter writer;
+	protected final IndexWriter[] shardWriters;
+	private final List<File> shardDirs = new ArrayList<File>();
+	private final AtomicInteger nextShard = new AtomicInteger();
+	private final ThreadLocal<IndexWriter> threadWriter = new ThreadLocal<IndexWriter>() {
+		@Override
+		protected IndexWriter initialValue() {
+			return shardWriters[nextShard.getAndIncrement() % shardWriters.length];
+		}
+	};
 
 	private Pattern urlSplitPattern = Pattern.compile("[/_-]|%20");
+	// many tables share hosts, pages (all tables of a page) and titles, see preprocessDataset
+	private final Cache<String, Optional<String>> domainCache = CacheBuilder
+			.newBuilder().maximumSize(DOMAIN_CACHE_SIZE).build();
+	private final Cache<String, String[]> urlTermCache = CacheBuilder
+			.newBuilder().maximumSize(TERM_CACHE_SIZE).build();
+	private final Cache<String, String[]> titleTermCache = CacheBuilder
+			.newBuilder().maximumSize(TERM_CACHE_SIZE).build();
+	private final ThreadLocal<ColumnProfiler> columnProfiler = new ThreadLocal<ColumnProfiler>() {
+		@Override
+		protected ColumnProfiler initialValue() {
+			return new ColumnProfiler();
+		}
+	};
 	private DB leveldb;
 
+	// last leveldb key handed out in a key range
 	private AtomicLong nextKey = new AtomicLong(0);
-
+	private final List<FullResultBatch> fullResultBatches = new ArrayList<FullResultBatch>();
+	private final ThreadLocal<FullResultBatch> fullResultBatch = new ThreadLocal<FullResultBatch>() {
+		@Override
+		protected FullResultBatch initialValue() {
+			FullResultBatch batch = new FullResultBatch();
+			synchronized (fullResultBatches) {
+				fullResultBatches.add(batch);
+			}
+			return batch;
+		}
+	};
+	// completed files not yet covered by an index commit
+	private final List<File> uncommittedFiles = new ArrayList<File>();
+	// files already in the index, only used in incremental mode
+	private FileManifest manifest = null;
 
 
 	public Indexer(JSAPResult config) throws IOException {
 		String outputPath = config.getString(OUTPUT_PATH, "<NONE>");
-		if (!outputPath.equals("<NONE>")) {
+		int shards = config.getInt(SHARDS, 0);
+		if (shards > 0 && config.getBoolean(INCREMENTAL))
+			throw new IllegalArgumentException(
+					"incremental indexing can't be combined with shards, updates need to see the whole index");
+		if (config.getBoolean(INCREMENTAL) && !outputPath.equals("<NONE>"))
+			checkIncremental(outputPath);
+		boolean keepShards = shards > 0 && config.getBoolean(KEEP_SHARDS);
+		if (!outputPath.equals("<NONE>") && !keepShards) {
 			SimpleFSDirectory idx_dir = new SimpleFSDirectory(new File(
 					outputPath));
 
@@ -85,43 +231,203 @@ public class Indexer extends WebreduceIterator {
 			this.writer = null;
 		}
 
+		if (shards > 0) {
+			this.shardWriters = new IndexWriter[shards];
+			for (int i = 0; i < shards; i++) {
+				File shardDir = IndexShards.shardDir(new File(outputPath), i);
+				shardDirs.add(shardDir);
+				shardWriters[i] = new IndexWriter(FSDirectory.open(shardDir),
+						shardConfig(shards));
+			}
+			if (keepShards)
+				IndexShards.writeManifest(new File(outputPath), shardDirs);
+		} else {
+			this.shardWriters = null;
+		}
+
 		this.joiner = Joiner.on(" ").skipNulls();
 		this.config = config;
 
 		Options options = new Options();
 		options.createIfMissing(true);
 		leveldb = factory.open(new File(outputPath, "leveldb"), options);
+
+		DatasetFilter filter = DatasetFilter.parse(DOMAIN_FILTER);
+		if (config.getBoolean(HEADERED_TABLES_ONLY))
+			filter = filter.and(DatasetFilter.parse("hasHeader"));
+		if (config.getString(FILTER) != null)
+			filter = filter.and(DatasetFilter.parse(config.getString(FILTER)));
+		this.filter = filter;
+		setFilter(filter);
+
+		if (config.getBoolean(CHECKPOINT))
+			setCheckpoint(new File(outputPath, "checkpoint.journal"));
+		if (config.getBoolean(INCREMENTAL))
+			manifest = FileManifest.load(manifestFile(outputPath));
+	}
+
+	private static File manifestFile(String outputPath) {
+		return new File(outputPath, "files.manifest");
+	}
+
+	/*
+	 * documents of an index built without --incremental (or --checkpoint) have no source_file, so
+	 * the tables dropped from a changed file could not be deleted, and their full results in the
+	 * leveldb are keyed by a counter instead of the table_id that updates overwrite
+	 */
+	private static void checkIncremental(String outputPath) throws IOException {
+		if (manifestFile(outputPath).exists())
+			return;
+		Directory dir = FSDirectory.open(new File(outputPath));
+		try {
+			if (!DirectoryReader.indexExists(dir))
+				return;
+			DirectoryReader reader = DirectoryReader.open(dir);
+			try {
+				if (reader.numDocs() > 0)
+					throw new IllegalArgumentException(
+							"incremental indexing needs a fresh index or one built with --incremental, the documents of others have no source_file: "
+									+ outputPath);
+			} finally {
+				reader.close();
+			}
+		} finally {
+			dir.close();
+		}
 	}
 
 	public static void main(String[] args) throws IOException,
 			InterruptedException, JSAPException {
-		JSAP jsap = new JSAP();
+		JSAP jsap = createParser();
+		JSAPResult config = jsap.parse(args);
+
+		if (!config.success()) {
+			System.err.println();
+			for (Iterator<?> errors = config.getErrorMessageIterator(); errors
+					.hasNext();)
+				System.err.println("Error: " + errors.next());
+			System.err.println("Usage: java " + Indexer.class.getName());
+			System.err.println("                " + jsap.getUsage());
+			System.err.println();
+			System.exit(1);
+		}
+
+		Indexer fi = new Indexer(config);
+		fi.iterate(config.getString(CORPUS_PATH));
+	}
+
+	/* the command line flags of the indexer, also used to configure it programmatically */
+	public static JSAP createParser() throws JSAPException {
+		JSAP jsap = new JSAP() {
+			@Override
+			public JSAPResult parse(String[] args) {
+				JSAPResult config = super.parse(args);
+				if (!config.success())
+					return config;
+				// the format options only apply to binary full results
+				for (String option : new String[] { COMPRESS_FULL_RESULT,
+						TYPED_FULL_RESULT }) {
+					if (config.getBoolean(option)
+							&& !config.getBoolean(BINARY_FULL_RESULT))
+						config.addException(option, new IllegalArgumentException(
+								"--" + option + " requires --" + BINARY_FULL_RESULT));
+				}
+				return config;
+			}
+		};
 		jsap.registerParameter(new Switch(HEADERED_TABLES_ONLY).setLongFlag(
 				HEADERED_TABLES_ONLY).setShortFlag('h'));
+		jsap.registerParameter(new FlaggedOption(FILTER).setLongFlag(FILTER)
+				.setShortFlag('w'));
 		jsap.registerParameter(new Switch(PREPROCESSING).setLongFlag(
 				PREPROCESSING).setShortFlag('r'));
 		jsap.registerParameter(new Switch(STORE_FULL_RESULT).setLongFlag(
 				STORE_FULL_RESULT).setShortFlag('s'));
 		jsap.registerParameter(new Switch(STORE_FULL_RESULT_IN_LEVELDB).setLongFlag(
 				STORE_FULL_RESULT_IN_LEVELDB).setShortFlag('l'));
+		jsap.registerParameter(new Switch(BINARY_FULL_RESULT).setLongFlag(
+				BINARY_FULL_RESULT).setShortFlag('b'));
+		jsap.registerParameter(new Switch(COMPRESS_FULL_RESULT).setLongFlag(
+				COMPRESS_FULL_RESULT).setShortFlag('z'));
+		jsap.registerParameter(new Switch(TYPED_FULL_RESULT).setLongFlag(
+				TYPED_FULL_RESULT).setShortFlag('t'));
+		jsap.registerParameter(new Switch(FACETS).setLongFlag(FACETS)
+				.setShortFlag('f'));
+		jsap.registerParameter(new Switch(PROFILES).setLongFlag(PROFILES)
+				.setShortFlag('p'));
+		jsap.registerParameter(new Switch(CHECKPOINT).setLongFlag(
+				CHECKPOINT).setShortFlag('c'));
+		jsap.registerParameter(new Switch(INCREMENTAL).setLongFlag(
+				INCREMENTAL).setShortFlag('i'));
+		jsap.registerParameter(new FlaggedOption(SHARDS)
+				.setStringParser(JSAP.INTEGER_PARSER).setDefault("0")
+				.setLongFlag(SHARDS).setShortFlag('n'));
+		jsap.registerParameter(new Switch(KEEP_SHARDS).setLongFlag(
+				KEEP_SHARDS).setShortFlag('k'));
 		jsap.registerParameter(new UnflaggedOption(CORPUS_PATH)
 				.setRequired(true));
 		jsap.registerParameter(new UnflaggedOption(OUTPUT_PATH)
 				.setRequired(true));
-		JSAPResult config = jsap.parse(args);
+		return jsap;
+	}
 
-		if (!config.success()) {
-			System.err.println();
-			System.err.println("Usage: java " + Indexer.class.getName());
-			System.err.println("                " + jsap.getUsage());
-			System.err.println();
-			System.exit(1);
+	/*
+	 * index writer configuration of one of the given number of shards, tuned for bulk indexing by a
+	 * single thread
+	 */
+	protected IndexWriterConfig shardConfig(int shards) {
+		IndexWriterConfig indexConfig = new IndexWriterConfig(
+				Version.LUCENE_4_10_2, analyzer);
+		double totalMB = Math.min(SHARDS_RAM_BUFFER_MB, Runtime.getRuntime()
+				.maxMemory() / 4.0 / (1024 * 1024));
+		indexConfig.setRAMBufferSizeMB(Math.max(
+				IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB, totalMB / shards));
+		TieredMergePolicy mergePolicy = new TieredMergePolicy();
+		mergePolicy.setSegmentsPerTier(SHARD_SEGMENTS_PER_TIER);
+		indexConfig.setMergePolicy(mergePolicy);
+		// the shards already keep all cores busy, so one merge thread each is enough
+		ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+		mergeScheduler.setMaxMergesAndThreads(2, 1);
+		indexConfig.setMergeScheduler(mergeScheduler);
+		return indexConfig;
+	}
+
+	/* the writer the current thread adds its documents to */
+	protected IndexWriter indexWriter() {
+		return shardWriters == null ? writer : threadWriter.get();
+	}
+
+	/* all writers documents are added to */
+	protected IndexWriter[] indexWriters() {
+		return shardWriters == null ? new IndexWriter[] { writer } : shardWriters;
+	}
+
+	@Override
+	protected Collection<File> listFiles(File inDir) throws IOException {
+		Collection<File> files = super.listFiles(inDir);
+		if (manifest == null)
+			return files;
+		List<File> todo = new ArrayList<File>();
+		for (File f : files) {
+			FileManifest.Status status = manifest.check(f);
+			if (status == FileManifest.Status.CHANGED)
+				// tables no longer in the file must go, the others are indexed again
+				discardPartialResults(f);
+			if (status != FileManifest.Status.UNCHANGED)
+				todo.add(f);
 		}
+		System.out.println("Incremental run, indexing " + todo.size() + " of "
+				+ files.size() + " files.");
+		return todo;
+	}
 
-		Indexer fi = new Indexer(config);
-		fi.iterate(config.getString(CORPUS_PATH));
+	@Override
+	protected void process(Record record) throws IOException {
+		// deserialize straight from the raw bytes, the value is never decoded to a String
+		processDataset(parseDataset(record));
 	}
 
+	/* indexes the table of a decoded corpus line */
 	@Override
 	protected void process(String key, String value) throws IOException {
 		// deserialize the json formatted data
@@ -131,15 +437,9 @@ public class Indexer extends WebreduceIterator {
 	}
 
     protected void processDataset(Dataset er) throws IOException {
-		String url = er.getUrl();
-		if (!(url.contains(".com") || url.contains(".net")
-				|| url.contains(".org") || url.contains(".uk"))) {
+		// records read by the iterator already passed the filter, this is for direct callers
+		if (!filter.matches(er))
 			return;
-		}
-
-		if (config.getBoolean(HEADERED_TABLES_ONLY) && !er.getHasHeader()) {
-			return;
-		}
 
 		String[][] cols = er.getRelation();
 		int numCols = cols.length;
@@ -199,64 +499,361 @@ public class Indexer extends WebreduceIterator {
 		doc.add(new TextField("entities", entitiesStr, Field.Store.NO));
 		doc.add(new TextField("terms", termsStr, Field.Store.NO));
 		doc.add(new TextField("keys", keysStr, Field.Store.NO));
-		doc.add(new StringField("tableType", er.getTableType().name(), Field.Store.YES));
+		doc.add(new StringField(TABLE_TYPE, er.getTableType().name(), Field.Store.YES));
+		// preprocess once, for all of facets, profiles and stored results
+		if (config.getBoolean(FACETS) || config.getBoolean(PROFILES)
+				|| config.getBoolean(STORE_FULL_RESULT)
+				|| config.getBoolean(STORE_FULL_RESULT_IN_LEVELDB))
+			preprocessDataset(er);
+		if (config.getBoolean(FACETS))
+			addFacets(doc, er);
+		if (config.getBoolean(PROFILES))
+			addProfiles(doc, er);
+		String tableId = er.getTableId();
+		doc.add(new StringField(TABLE_ID, tableId, Field.Store.YES));
+		if ((checkpoint != null || manifest != null) && getCurrentFile() != null)
+			doc.add(new StringField(SOURCE_FILE, getCurrentFile().getPath(), Field.Store.NO));
+		// the encoded result is shared by both stores
+		String json = null;
+		byte[] binary = null;
 		if (config.getBoolean(STORE_FULL_RESULT)) {
-			doc.add(new StoredField("full_result", preprocess(er)));
+			if (config.getBoolean(BINARY_FULL_RESULT)) {
+				binary = fullResult(er);
+				doc.add(new StoredField("full_result", binary));
+			} else {
+				json = er.toJson();
+				doc.add(new StoredField("full_result", json));
+			}
 		}
 		if (config.getBoolean(STORE_FULL_RESULT_IN_LEVELDB)) {
-			long key = nextKey.incrementAndGet();
-			doc.add(new StoredField("document_id", key));
-			String preprocessedResult = preprocess(er);
-			synchronized (leveldb) {
-				leveldb.put(Longs.toByteArray(key), bytes(preprocessedResult));
+			FullResultBatch batch = fullResultBatch.get();
+			byte[] preprocessedResult = binary != null ? binary
+					: json != null ? bytes(json) : fullResult(er);
+			if (manifest != null) {
+				// keyed by the table id, so that updated tables overwrite their old version
+				batch.put(bytes(tableId), preprocessedResult);
+			} else {
+				long key = batch.put(preprocessedResult);
+				doc.add(new StoredField("document_id", key));
+			}
+		}
+		if (manifest != null)
+			indexWriter().updateDocument(new Term(TABLE_ID, tableId), doc);
+		else
+			indexWriter().addDocument(doc);
+	}
+
+	/*
+	 * Adds the structural properties of the table as DocValues, to count and filter by them without
+	 * loading stored documents: numbers as NumericDocValues, strings as SortedDocValues and the
+	 * column types (one value per distinct type) as SortedSetDocValues.
+	 */
+	protected void addFacets(Document doc, Dataset er) {
+		String[][] cols = er.getRelation();
+		doc.add(new NumericDocValuesField(NUM_COLS, cols.length));
+		doc.add(new NumericDocValuesField(NUM_ROWS, cols.length == 0 ? 0
+				: cols[0].length));
+		doc.add(new SortedDocValuesField(TABLE_TYPE, new BytesRef(er
+				.getTableType().name())));
+		if (er.getDomain() != null)
+			doc.add(new SortedDocValuesField(DOMAIN, new BytesRef(er
+					.getDomain())));
+		if (er.getHasHeader() != null)
+			doc.add(new NumericDocValuesField(HAS_HEADER,
+					er.getHasHeader() ? 1 : 0));
+		if (er.getHeaderPosition() != null)
+			doc.add(new SortedDocValuesField(HEADER_POSITION, new BytesRef(er
+					.getHeaderPosition().name())));
+		Set<String> columnTypes = new HashSet<String>(Arrays.asList(er
+				.getColumnTypes()));
+		for (String type : columnTypes)
+			doc.add(new SortedSetDocValuesField(COLUMN_TYPES, new BytesRef(type)));
+	}
+
+	/* adds the column profiles as numeric fields, with a value per (numeric) column */
+	protected void addProfiles(Document doc, Dataset er) {
+		for (ColumnProfile p : er.getColumnProfiles()) {
+			doc.add(new DoubleField(COLUMN_NULL_FRACTION, p.nullFraction,
+					Field.Store.NO));
+			doc.add(new DoubleField(COLUMN_AVG_LENGTH, p.avgLength,
+					Field.Store.NO));
+			doc.add(new LongField(COLUMN_DISTINCT, p.distinct, Field.Store.NO));
+			if (p.isNumeric()) {
+				doc.add(new DoubleField(COLUMN_MIN, p.min, Field.Store.NO));
+				doc.add(new DoubleField(COLUMN_MAX, p.max, Field.Store.NO));
+				doc.add(new DoubleField(COLUMN_MEAN, p.mean, Field.Store.NO));
 			}
 		}
-		writer.addDocument(doc);
 	}
 
 	@Override
 	protected void finishProcessFile(File f) throws IOException {
+		// results in the leveldb are complete once the file is recorded as done
+		if (config.getBoolean(STORE_FULL_RESULT_IN_LEVELDB))
+			fullResultBatch.get().flush();
+	}
+
+	/*
+	 * The full results of one worker, buffered in a WriteBatch and written when it grows big or
+	 * the worker finishes a file. Each worker takes its keys from its own range, so the workers
+	 * never wait on each other and the keys of one batch are ascending.
+	 */
+	private class FullResultBatch {
+		private WriteBatch batch = leveldb.createWriteBatch();
+		private int bytes = 0;
+		private long key = 0;
+		private long lastKey = 0;
+
+		/* adds the value under the next key of this worker's range, returns the key */
+		long put(byte[] value) throws IOException {
+			if (key == lastKey) {
+				lastKey = nextKey.addAndGet(LEVELDB_KEY_RANGE);
+				key = lastKey - LEVELDB_KEY_RANGE;
+			}
+			key++;
+			put(Longs.toByteArray(key), value);
+			return key;
+		}
+
+		void put(byte[] k, byte[] value) throws IOException {
+			batch.put(k, value);
+			bytes += k.length + value.length;
+			if (bytes >= LEVELDB_BATCH_BYTES)
+				flush();
+		}
+
+		void flush() throws IOException {
+			if (bytes == 0)
+				return;
+			leveldb.write(batch);
+			batch.close();
+			batch = leveldb.createWriteBatch();
+			bytes = 0;
+		}
+
+		void close() throws IOException {
+			flush();
+			batch.close();
+		}
+	}
+
+	@Override
+	protected void fileCompleted(File f) throws IOException {
+		if (checkpoint == null && manifest == null)
+			return;
+		boolean commit;
+		synchronized (uncommittedFiles) {
+			uncommittedFiles.add(f);
+			commit = uncommittedFiles.size() >= CHECKPOINT_COMMIT_FILES;
+		}
+		if (commit)
+			commitCheckpoint();
+	}
+
+	/*
+	 * Commits the index and only then records the files completed so far as done, so that after a
+	 * crash the index never holds documents of files that are not in the journal, except for
+	 * partial files, which are deleted by discardPartialResults before being indexed again.
+	 */
+	protected synchronized void commitCheckpoint() throws IOException {
+		if (checkpoint == null && manifest == null)
+			return;
+		List<File> files;
+		synchronized (uncommittedFiles) {
+			files = new ArrayList<File>(uncommittedFiles);
+			uncommittedFiles.clear();
+		}
+		for (IndexWriter w : indexWriters())
+			w.commit();
+		String state = snapshotState();
+		// a synced write also syncs all earlier LevelDB writes
+		leveldb.put(bytes(CHECKPOINT), bytes(state), new WriteOptions().sync(true));
+		if (checkpoint != null)
+			checkpoint.markDone(files, state);
+		if (manifest != null)
+			manifest.commit(files);
+	}
+
+	@Override
+	protected String snapshotState() {
+		// key ranges handed out later only hold documents of files that are not done yet
+		return Long.toString(nextKey.get());
+	}
+
+	@Override
+	protected void restoreState(String state) {
+		nextKey.set(Long.parseLong(state));
+	}
+
+	@Override
+	protected void discardPartialResults(File f) throws IOException {
+		Term source = new Term(SOURCE_FILE, f.getPath());
+		if (manifest != null
+				&& config.getBoolean(STORE_FULL_RESULT_IN_LEVELDB))
+			discardFullResults(source);
+		for (IndexWriter w : indexWriters())
+			w.deleteDocuments(source);
+	}
+
+	/*
+	 * Deletes the full results of the documents with the given term from the leveldb, where
+	 * incremental indexes key them by table id. Tables that are still in the file are written
+	 * again when it is indexed, the others would be left behind.
+	 */
+	private void discardFullResults(Term term) throws IOException {
+		Set<String> fields = Collections.singleton(TABLE_ID);
+		WriteBatch batch = leveldb.createWriteBatch();
+		DirectoryReader reader = DirectoryReader.open(writer, false);
+		try {
+			for (AtomicReaderContext leaf : reader.leaves()) {
+				AtomicReader leafReader = leaf.reader();
+				Bits liveDocs = leafReader.getLiveDocs();
+				DocsEnum docs = leafReader.termDocsEnum(term);
+				if (docs == null)
+					continue;
+				int doc;
+				while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+					if (liveDocs != null && !liveDocs.get(doc))
+						continue;
+					String tableId = leafReader.document(doc, fields).get(TABLE_ID);
+					if (tableId != null)
+						batch.delete(bytes(tableId));
+				}
+			}
+			leveldb.write(batch);
+		} finally {
+			reader.close();
+			batch.close();
+		}
 	}
 
 	@Override
 	protected void close() throws IOException, InterruptedException {
 		super.close();
-		writer.close();
+		synchronized (fullResultBatches) {
+			for (FullResultBatch batch : fullResultBatches)
+				batch.close();
+		}
+		commitCheckpoint();
+		if (shardWriters != null)
+			closeShards();
+		if (writer != null)
+			writer.close();
 		leveldb.close();
 	}
 
+	/* closes the shard writers and, unless the shards are kept, merges them into the main index */
+	protected void closeShards() throws IOException {
+		for (IndexWriter w : shardWriters)
+			w.close();
+		if (writer == null)
+			return;
+		System.out.println("Merging " + shardDirs.size() + " shards...");
+		Directory[] dirs = new Directory[shardDirs.size()];
+		for (int i = 0; i < dirs.length; i++)
+			dirs[i] = FSDirectory.open(shardDirs.get(i));
+		writer.addIndexes(dirs);
+		writer.commit();
+		for (Directory dir : dirs)
+			dir.close();
+		FileUtils.deleteDirectory(shardDirs.get(0).getParentFile());
+	}
+
 	protected String preprocess(webreduce.data.Dataset ds) {
+		preprocessDataset(ds);
+		return ds.toJson();
+	}
+
+	/*
+	 * the (already preprocessed) table as stored, binary or JSON, readable with
+	 * DatasetCodec.decodeStored
+	 */
+	protected byte[] fullResult(Dataset ds) {
+		if (!config.getBoolean(BINARY_FULL_RESULT))
+			return bytes(ds.toJson());
+		return DatasetCodec.encode(ds, config.getBoolean(COMPRESS_FULL_RESULT),
+				config.getBoolean(TYPED_FULL_RESULT));
+	}
+
+	/*
+	 * Domains and terms come from caches, so that the URL parsing, the public suffix lookup and the
+	 * analysis run once per host, page and title. The cached term arrays are shared between
+	 * datasets and must not be modified.
+	 */
+	protected void preprocessDataset(Dataset ds) {
 		/* example of some useful preprocessing done while indexing */
+		ds.domain = domain(ds.url);
+		ds.titleTermSet = cachedAnalyze(titleTermCache, ds.title);
+		ds.urlTermSet = urlTerms(ds.url);
+		ds.columnTypes = new String[ds.relation.length];
+		if (config.getBoolean(PROFILES)) {
+			// typed in the same pass, on all cells rather than a sample (see ColumnProfiler)
+			ColumnProfiler profiler = columnProfiler.get();
+			ds.columnProfiles = new ColumnProfile[ds.relation.length];
+			for (int i = 0; i < ds.relation.length; i++) {
+				ds.columnProfiles[i] = profiler.profile(ds.relation[i], 1,
+						ds.relation[i].length);
+				ds.columnTypes[i] = ds.columnProfiles[i].type;
+			}
+			return;
+		}
+		for (int i = 0; i < ds.relation.length; i++)
+			ds.columnTypes[i] = Types.columnType(ds.relation[i], 1,
+					ds.relation[i].length).Name;
+	}
+
+	/* the top private domain of the url's host, null if there is none */
+	protected String domain(String url) {
+		// cache by the part of the url up to the path, i.e. scheme and authority
+		int start = url == null ? -1 : url.indexOf("://");
+		if (start < 0)
+			return topPrivateDomain(url);
+		int end = start + 3;
+		while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0)
+			end++;
+		String prefix = url.substring(0, end);
+		Optional<String> domain = domainCache.getIfPresent(prefix);
+		if (domain == null) {
+			domain = Optional.fromNullable(topPrivateDomain(prefix));
+			domainCache.put(prefix, domain);
+		}
+		return domain.orNull();
+	}
+
+	private static String topPrivateDomain(String url) {
 		try {
-			ds.domain = InternetDomainName.from(new URI(ds.url).getHost())
+			return InternetDomainName.from(new URI(url).getHost())
 					.topPrivateDomain().toString();
 		} catch (Exception e) {
-			ds.domain = null;
+			return null;
 		}
-		ds.titleTermSet = analyze(ds.title);
-		ds.urlTermSet = analyze(joiner.join(splitURL(ds.url)));
-		ds.columnTypes = new String[ds.relation.length];
-		for (int i = 0; i < ds.relation.length; i++)
-			ds.columnTypes[i] = Types.columnType(Arrays.copyOfRange(
-					ds.relation[i], 1, ds.relation[i].length)).Name;
-		return ds.toJson();
 	}
 
-	protected String[] analyze(String s) {
-		List<String> result = new ArrayList<String>();
-		TokenStream stream;
-		try {
-			stream = analyzer.tokenStream(null, new StringReader(s));
-			stream.reset();
-			while (stream.incrementToken())
-				result.add(stream.getAttribute(CharTermAttribute.class)
-						.toString());
-			stream.end();
-			stream.close();
-		} catch (IOException e) {
-			// what to do?
+	protected String[] urlTerms(String url) {
+		String[] terms = urlTermCache.getIfPresent(url);
+		if (terms == null) {
+			AnalysisContext context = Analysis.context();
+			terms = context.terms(analyzer,
+					joiner.appendTo(context.text(), splitURL(url)));
+			urlTermCache.put(url, terms);
+		}
+		return terms;
+	}
+
+	private String[] cachedAnalyze(Cache<String, String[]> cache, String s) {
+		if (s == null)
+			return analyze(s);
+		String[] terms = cache.getIfPresent(s);
+		if (terms == null) {
+			terms = analyze(s);
+			cache.put(s, terms);
 		}
-		return result.toArray(new String[] {});
+		return terms;
+	}
+
+	/* the terms of s, analyzed with the reusable context of the current thread */
+	protected String[] analyze(String s) {
+		return Analysis.context().terms(analyzer, s);
 	}
 
 	protected String[] splitURL(String url) {
@@ -0,0 +1,81 @@
+package webreduce.iterator;
+
+import java.io.File;
+import java.io.IOException;
+
+import webreduce.data.Dataset;
+import webreduce.data.DatasetProjection;
+
+/*
+ * WebreduceIterator that computes an Aggregation over all tables of the corpus:
+ *
+ *   A result = new MyAggregation().aggregate(corpusPath);
+ *
+ * Subclasses provide newAccumulator(), map(Dataset, A) and combine(A, A), as in an Aggregation.
+ * Tables are only deserialized as far as the projection passed to the constructor requires (all
+ * fields if none). Aggregations that need no table at all, e.g. counting, override map(Record, A)
+ * instead, with a map(Dataset, A) that does nothing, as it is never called.
+ */
+public abstract class AggregatingIterator<A> extends WebreduceIterator {
+
+	protected final DatasetProjection projection;
+	private final WorkerAccumulators<Dataset, A> accumulators = new WorkerAccumulators<Dataset, A>(
+			new Aggregation<Dataset, A>() {
+				@Override
+				public A newAccumulator() {
+					return AggregatingIterator.this.newAccumulator();
+				}
+
+				@Override
+				public void map(Dataset ds, A acc) throws IOException {
+					AggregatingIterator.this.map(ds, acc);
+				}
+
+				@Override
+				public A combine(A left, A right) {
+					return AggregatingIterator.this.combine(left, right);
+				}
+			});
+
+	public AggregatingIterator() {
+		this(null);
+	}
+
+	public AggregatingIterator(DatasetProjection projection) {
+		this.projection = projection;
+	}
+
+	/* iterates the corpus and returns the combined result of all workers */
+	public A aggregate(String inPath) throws IOException, InterruptedException {
+		iterate(inPath);
+		return accumulators.reduce();
+	}
+
+	@Override
+	protected void process(Record record) throws IOException {
+		map(record, accumulators.get());
+	}
+
+	@Override
+	protected void process(String key, String value) throws IOException {
+		map(Dataset.fromJson(value), accumulators.get());
+	}
+
+	protected void map(Record record, A acc) throws IOException {
+		map(projection == null ? parseDataset(record) : parseDataset(record,
+				projection), acc);
+	}
+
+	protected abstract A newAccumulator();
+
+	protected abstract void map(Dataset ds, A acc) throws IOException;
+
+	/* merges two accumulators, may modify and return one of them */
+	protected abstract A combine(A left, A right);
+
+	@Override
+	protected void finishProcessFile(File f) throws IOException {
+		// accumulators stay with their worker until the end
+	}
+
+}
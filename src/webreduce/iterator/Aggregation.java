@@ -0,0 +1,19 @@
+package webreduce.iterator;
+
+import java.io.IOException;
+
+/*
+ * An aggregation over the items of an iteration (tables, lines, ...). Every worker maps its items
+ * into an accumulator of its own, so the hot path never touches shared state, and the
+ * accumulators of all workers are combined once the workers are done, see WorkerAccumulators.
+ */
+public interface Aggregation<T, A> {
+
+	A newAccumulator();
+
+	void map(T item, A acc) throws IOException;
+
+	/* merges two accumulators, may modify and return one of them */
+	A combine(A left, A right);
+
+}
@@ -0,0 +1,138 @@
+package webreduce.iterator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+/*
+ * Append-only journal of the corpus files that were completely processed by an iterator, together
+ * with snapshots of the iterator's own state. Every entry is synced to disk before markDone returns,
+ * so after a crash an iterator can resume with the files not yet in the journal.
+ *
+ * Format, one tab separated entry per line: "input <path> $" once, then for every checkpoint
+ * "done <base64 state or empty> [<length> <path>]* $". Lines without the final "$" were torn by a
+ * crash and are ignored, so files and the state they belong to are always recorded together.
+ */
+public class CheckpointJournal {
+
+	private final File journal;
+	private final Set<String> done = new HashSet<String>();
+	private String input = null;
+	private String state = null;
+
+	public CheckpointJournal(File journal) throws IOException {
+		this.journal = journal;
+		if (journal.exists())
+			load();
+	}
+
+	private void load() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(journal, "r");
+		try {
+			// terminate a torn last line, so that the next entry starts on its own line
+			if (raf.length() > 0) {
+				raf.seek(raf.length() - 1);
+				if (raf.read() != '\n')
+					append("\n");
+			}
+		} finally {
+			raf.close();
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(journal), Charsets.UTF_8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] entry = line.split("\t", -1);
+				if (entry.length < 3 || !entry[entry.length - 1].equals("$"))
+					continue;
+				if (entry[0].equals("input")) {
+					input = entry[1];
+				} else if (entry[0].equals("done")) {
+					if (!entry[1].isEmpty())
+						state = new String(BaseEncoding.base64().decode(
+								entry[1]), Charsets.UTF_8);
+					for (int i = 2; i + 1 < entry.length; i += 2)
+						done.add(entry[i] + "\t" + entry[i + 1]);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/* binds the journal to an input path, fails if it was written for another one */
+	public synchronized void open(File inPath) throws IOException {
+		String path = inPath.getCanonicalPath();
+		if (input == null) {
+			input = path;
+			append("input\t" + path + "\t$\n");
+		} else if (!input.equals(path)) {
+			throw new IOException("Checkpoint journal " + journal
+					+ " belongs to input " + input + ", not " + path);
+		}
+	}
+
+	/* true if files were already completed by an earlier run */
+	public synchronized boolean isResumed() {
+		return !done.isEmpty() || state != null;
+	}
+
+	public synchronized boolean isDone(File f) throws IOException {
+		return done.contains(key(f));
+	}
+
+	/* the last state snapshot, or null */
+	public synchronized String getState() {
+		return state;
+	}
+
+	/* durably records the given files as done, together with an optional state snapshot */
+	public synchronized void markDone(Collection<File> files, String snapshot)
+			throws IOException {
+		Set<String> keys = new HashSet<String>();
+		StringBuilder sb = new StringBuilder("done\t");
+		if (snapshot != null)
+			sb.append(BaseEncoding.base64().encode(
+					snapshot.getBytes(Charsets.UTF_8)));
+		for (File f : files) {
+			String key = key(f);
+			keys.add(key);
+			sb.append("\t").append(key);
+		}
+		sb.append("\t$\n");
+		append(sb.toString());
+		done.addAll(keys);
+		if (snapshot != null)
+			state = snapshot;
+	}
+
+	private String key(File f) throws IOException {
+		return f.length() + "\t" + f.getCanonicalPath();
+	}
+
+	private void append(String entry) throws IOException {
+		FileOutputStream out = new FileOutputStream(journal, true);
+		try {
+			Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+			writer.write(entry);
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -4,47 +4,135 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
-/* simple implementation of the ParallelIterator for iterating over lines of uncompressed files */
+/* simple implementation of the ParallelIterator for iterating over lines of uncompressed files
+ *
+ * Lines are handed to the workers in chunks of chunkLines lines or chunkChars characters, whichever
+ * is reached first, to keep the per-task overhead away from cheap process() implementations. For
+ * process() implementations that block on I/O, setVirtualThreads() runs the chunks on virtual
+ * threads instead (if the JVM has them, Java 21 and later).
+ */
 public abstract class FileLinesIterator extends ParallelIterator {
 
-	private class LineProcessor implements Runnable {
-		private final String line;
+	protected int chunkLines = 1024;
+	protected int chunkChars = 1024 * 1024;
+	protected int virtualThreadChunks = 0;
 
-		public LineProcessor(String line) {
-			this.line = line;
+	private class ChunkProcessor implements Runnable {
+		private final List<String> lines;
+		private final Semaphore inFlight;
+
+		public ChunkProcessor(List<String> lines, Semaphore inFlight) {
+			this.lines = lines;
+			this.inFlight = inFlight;
 		}
 
 		@Override
 		public void run() {
 			try {
-				FileLinesIterator.this.process(line);
-			} catch (IOException e) {
-				// pass
+				for (String line : lines) {
+					try {
+						long t0 = System.nanoTime();
+						FileLinesIterator.this.process(line);
+						metrics.recordProcess(System.nanoTime() - t0);
+					} catch (IOException e) {
+						// pass
+					}
+					finishedItem();
+				}
+			} finally {
+				if (inFlight != null)
+					inFlight.release();
 			}
-			finishedItem();
 		}
 	}
 
+	/* maximum number of lines per task */
+	public void setChunkLines(int chunkLines) {
+		this.chunkLines = chunkLines;
+	}
+
+	/* maximum number of characters (about bytes for mostly ASCII data) per task */
+	public void setChunkChars(int chunkChars) {
+		this.chunkChars = chunkChars;
+	}
+
+	/*
+	 * Runs each chunk on its own virtual thread, with at most maxConcurrentChunks chunks in flight.
+	 * Falls back to the worker threads if the JVM has no virtual threads, 0 disables.
+	 */
+	public void setVirtualThreads(int maxConcurrentChunks) {
+		this.virtualThreadChunks = maxConcurrentChunks;
+	}
+
 	@Override
 	public void iterate(String inPath) throws IOException, InterruptedException {
 		File inFile = new File(inPath);
 		FileReader fis = new FileReader(inFile);
 		BufferedReader input = new BufferedReader(fis);
 
+		ExecutorService executor = executorService;
+		Semaphore inFlight = null;
+		if (virtualThreadChunks > 0) {
+			ExecutorService virtual = newVirtualThreadExecutor();
+			if (virtual != null) {
+				executor = virtual;
+				inFlight = new Semaphore(virtualThreadChunks);
+				metrics.setParallelism(virtualThreadChunks);
+			} else {
+				System.err
+						.println("No virtual threads on this JVM, using worker threads.");
+			}
+		}
+
 		String line;
 		start();
+		List<String> chunk = new ArrayList<String>();
+		int chunkSize = 0;
 		while ((line = input.readLine()) != null) {
-			executorService.submit(new LineProcessor(line));
+			chunk.add(line);
+			chunkSize += line.length();
+			if (chunk.size() >= chunkLines || chunkSize >= chunkChars) {
+				submit(executor, chunk, inFlight);
+				chunk = new ArrayList<String>();
+				chunkSize = 0;
+			}
 		}
+		if (!chunk.isEmpty())
+			submit(executor, chunk, inFlight);
 		input.close();
+		if (executor != executorService) {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
 		close();
 	}
 
-	protected abstract void process(String line) throws IOException;
+	private void submit(ExecutorService executor, List<String> chunk,
+			Semaphore inFlight) throws InterruptedException {
+		if (inFlight != null)
+			inFlight.acquire();
+		executor.execute(new ChunkProcessor(chunk, inFlight));
+	}
 
-	@Override
-	protected void close() throws IOException {
+	/* Executors.newVirtualThreadPerTaskExecutor() if this JVM has it, null otherwise */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
 	}
 
+	protected abstract void process(String line) throws IOException;
+
 }
@@ -0,0 +1,421 @@
+package webreduce.iterator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+
+/*
+ * Offsets of the members of a (possibly multi-member) gzip file, which allow to inflate the
+ * members independently, see ParallelGzipInputStream. The index is stored next to the file as
+ * <file>.members and is built as a side effect of a sequential pass over the file (see
+ * indexingStream()), so it costs nothing extra after the first iteration.
+ *
+ * Single-member files can't be inflated in parallel. Running this class with --rewrite converts
+ * existing corpus files locally into multi-member files, which any gzip reader can still read.
+ */
+public class GzipMemberIndex {
+
+	private static final String SUFFIX = ".members";
+	private static final int VERSION = 1;
+
+	/* members bigger than this are not worth buffering for parallel inflation */
+	private static final long MAX_MEMBER_SIZE = 32 * 1024 * 1024;
+
+	private final long fileLength;
+	private final long lastModified;
+	// start offset of each member, followed by the end of the last member
+	private final long[] offsets;
+
+	private GzipMemberIndex(long fileLength, long lastModified, long[] offsets) {
+		this.fileLength = fileLength;
+		this.lastModified = lastModified;
+		this.offsets = offsets;
+	}
+
+	public int size() {
+		return offsets.length - 1;
+	}
+
+	public long start(int member) {
+		return offsets[member];
+	}
+
+	public long end(int member) {
+		return offsets[member + 1];
+	}
+
+	/* true if the file has several members of a size that can be inflated in memory */
+	public boolean isSplittable() {
+		if (size() < 2)
+			return false;
+		for (int m = 0; m < size(); m++) {
+			if (end(m) - start(m) > MAX_MEMBER_SIZE)
+				return false;
+		}
+		return true;
+	}
+
+	public static File sidecarFor(File gz) {
+		return new File(gz.getPath() + SUFFIX);
+	}
+
+	/* loads the index of the given file, returns null if there is none or it is outdated */
+	public static GzipMemberIndex load(File gz) {
+		File sidecar = sidecarFor(gz);
+		if (!sidecar.exists())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(sidecar)));
+			if (in.readInt() != VERSION)
+				return null;
+			long fileLength = in.readLong();
+			long lastModified = in.readLong();
+			if (fileLength != gz.length() || lastModified != gz.lastModified())
+				return null;
+			long[] offsets = new long[in.readInt()];
+			for (int i = 0; i < offsets.length; i++)
+				offsets[i] = in.readLong();
+			return new GzipMemberIndex(fileLength, lastModified, offsets);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// pass
+				}
+			}
+		}
+	}
+
+	public void save(File gz) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(sidecarFor(gz))));
+		try {
+			out.writeInt(VERSION);
+			out.writeLong(fileLength);
+			out.writeLong(lastModified);
+			out.writeInt(offsets.length);
+			for (long offset : offsets)
+				out.writeLong(offset);
+		} finally {
+			out.close();
+		}
+	}
+
+	/* scans the whole file to build (and save) its index */
+	public static GzipMemberIndex build(File gz) throws IOException {
+		IndexingInputStream in = indexingStream(gz);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			while (in.read(buf, 0, buf.length) != -1)
+				;
+		} finally {
+			in.close();
+		}
+		return in.getIndex();
+	}
+
+	/*
+	 * returns a sequential gzip stream over the file that records the member boundaries while
+	 * being read and saves the index once the end of the file is reached
+	 */
+	public static IndexingInputStream indexingStream(File gz)
+			throws IOException {
+		return new IndexingInputStream(gz, new AtomicLong());
+	}
+
+	/* like indexingStream(File), adding the compressed bytes read to the given counter */
+	public static IndexingInputStream indexingStream(File gz,
+			AtomicLong compressedBytes) throws IOException {
+		return new IndexingInputStream(gz, compressedBytes);
+	}
+
+	/*
+	 * Sequential gzip decoder that handles the member headers and trailers itself (with the same
+	 * checks as GZIPInputStream) to learn where each member starts.
+	 */
+	public static class IndexingInputStream extends InputStream {
+		private final File file;
+		private final long fileLength;
+		private final long lastModified;
+		private final InputStream in;
+		private final Inflater inflater = new Inflater(true);
+		private final CRC32 crc = new CRC32();
+		private final List<Long> offsets = new ArrayList<Long>();
+		private final byte[] buf = new byte[64 * 1024];
+		private int bufPos = 0;
+		private int bufLimit = 0;
+		private long bufOffset = 0; // file offset of buf[0]
+		private boolean inMember = false;
+		private boolean eof = false;
+		private GzipMemberIndex index = null;
+
+		IndexingInputStream(File file, AtomicLong compressedBytes)
+				throws IOException {
+			this.file = file;
+			this.fileLength = file.length();
+			this.lastModified = file.lastModified();
+			this.in = new MeteredInputStream(new FileInputStream(file),
+					compressedBytes, null);
+		}
+
+		public GzipMemberIndex getIndex() {
+			return index;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (!eof) {
+				if (!inMember && !readHeader()) {
+					finish();
+					break;
+				}
+				int n;
+				try {
+					n = inflater.inflate(b, off, len);
+				} catch (DataFormatException e) {
+					throw new ZipException(e.getMessage());
+				}
+				if (n > 0) {
+					crc.update(b, off, n);
+					return n;
+				}
+				if (inflater.finished()) {
+					bufPos = bufLimit - inflater.getRemaining();
+					readTrailer();
+				} else if (inflater.needsDictionary()) {
+					throw new ZipException("unexpected preset dictionary");
+				} else if (inflater.needsInput()) {
+					if (!fill())
+						throw new ZipException("truncated gzip member in "
+								+ file);
+					inflater.setInput(buf, bufPos, bufLimit - bufPos);
+					bufPos = bufLimit;
+				}
+			}
+			return -1;
+		}
+
+		private boolean fill() throws IOException {
+			bufOffset += bufLimit;
+			bufPos = 0;
+			bufLimit = 0;
+			int n = in.read(buf, 0, buf.length);
+			if (n <= 0)
+				return false;
+			bufLimit = n;
+			return true;
+		}
+
+		private int readByte() throws IOException {
+			if (bufPos == bufLimit && !fill())
+				throw new ZipException("truncated gzip header in " + file);
+			return buf[bufPos++] & 0xff;
+		}
+
+		/* like readByte(), but -1 at the end of the file, which may follow a member */
+		private int magicByte() throws IOException {
+			if (bufPos == bufLimit && !fill())
+				return -1;
+			return buf[bufPos++] & 0xff;
+		}
+
+		private boolean readHeader() throws IOException {
+			if (bufPos == bufLimit && !fill())
+				return false;
+			long start = bufOffset + bufPos;
+			if (magicByte() != 0x1f || magicByte() != 0x8b || magicByte() != 8) {
+				if (offsets.isEmpty())
+					throw new ZipException("Not in GZIP format");
+				// like GZIPInputStream, ignore trailing garbage after the last member, even if it
+				// is too short for a header
+				bufPos = bufLimit;
+				eof = true;
+				offsets.add(start);
+				return false;
+			}
+			int flags = readByte();
+			for (int i = 0; i < 6; i++)
+				readByte(); // mtime, xfl, os
+			if ((flags & 4) != 0) { // FEXTRA
+				int xlen = readByte() | (readByte() << 8);
+				for (int i = 0; i < xlen; i++)
+					readByte();
+			}
+			if ((flags & 8) != 0) { // FNAME
+				while (readByte() != 0)
+					;
+			}
+			if ((flags & 16) != 0) { // FCOMMENT
+				while (readByte() != 0)
+					;
+			}
+			if ((flags & 2) != 0) { // FHCRC
+				readByte();
+				readByte();
+			}
+			offsets.add(start);
+			inflater.reset();
+			crc.reset();
+			inflater.setInput(buf, bufPos, bufLimit - bufPos);
+			bufPos = bufLimit;
+			inMember = true;
+			return true;
+		}
+
+		private void readTrailer() throws IOException {
+			long storedCrc = readInt();
+			long storedSize = readInt();
+			if (storedCrc != crc.getValue()
+					|| storedSize != (inflater.getBytesWritten() & 0xffffffffL))
+				throw new ZipException("Corrupt GZIP trailer");
+			inMember = false;
+		}
+
+		private long readInt() throws IOException {
+			return (readByte() | (readByte() << 8) | (readByte() << 16) | ((long) readByte() << 24));
+		}
+
+		private void finish() throws IOException {
+			if (!eof) {
+				eof = true;
+				offsets.add(bufOffset + bufPos);
+			}
+			long[] o = new long[offsets.size()];
+			for (int i = 0; i < o.length; i++)
+				o[i] = offsets.get(i);
+			index = new GzipMemberIndex(fileLength, lastModified, o);
+			try {
+				index.save(file);
+			} catch (IOException e) {
+				System.err.println("Could not save member index of " + file
+						+ ": " + e.getMessage());
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			inflater.end();
+			in.close();
+		}
+	}
+
+	/* rewrites a gzip file into members of about memberSize uncompressed bytes each */
+	public static void rewrite(File gz, int memberSize) throws IOException {
+		File tmp = new File(gz.getPath() + ".tmp");
+		InputStream in = new GZIPInputStream(new BufferedInputStream(
+				new FileInputStream(gz)));
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+		try {
+			byte[] buf = new byte[memberSize];
+			while (true) {
+				int n = 0;
+				int r;
+				while (n < memberSize
+						&& (r = in.read(buf, n, memberSize - n)) != -1)
+					n += r;
+				if (n == 0)
+					break;
+				GZIPOutputStream member = new GZIPOutputStream(
+						new NonClosingOutputStream(out));
+				member.write(buf, 0, n);
+				member.close();
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		// the original stays in place until the rewritten file atomically replaces it
+		Files.move(tmp.toPath(), gz.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static class NonClosingOutputStream extends OutputStream {
+		private final OutputStream out;
+
+		NonClosingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.flush();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int memberSize = -1;
+		String path;
+		if (args.length == 3 && args[0].equals("--rewrite")) {
+			memberSize = Integer.parseInt(args[1]) * 1024 * 1024;
+			path = args[2];
+		} else if (args.length == 1) {
+			path = args[0];
+		} else {
+			System.out
+					.println("Usage: java webreduce.iterator.GzipMemberIndex [--rewrite <member-size-in-mb>] <path-to-corpus>");
+			System.exit(1);
+			return;
+		}
+		Collection<File> files = FileUtils.listFiles(new File(path),
+				new SuffixFileFilter(".gz"), TrueFileFilter.INSTANCE);
+		for (File f : files) {
+			GzipMemberIndex index = load(f);
+			if (index == null)
+				index = build(f);
+			if (memberSize > 0 && !index.isSplittable()) {
+				System.out.println("Rewriting " + f);
+				rewrite(f, memberSize);
+				index = build(f);
+			}
+			System.out.println(f + ": " + index.size() + " members");
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+package webreduce.iterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+
+import com.google.common.base.Charsets;
+
+/*
+ * An index written by the sharded Indexer without the final merge: one Lucene index per shard
+ * in <index>/shards/, listed in the manifest <index>/shards.manifest. Such an index is read as one
+ * MultiReader over all shards, an index without a manifest is opened as usual.
+ *
+ * It lives with the iterators rather than the Indexer, as both the Indexer and the readers of
+ * indexes (WebreduceIndexIterator, the search package) depend on it.
+ */
+public class IndexShards {
+
+	public static final String SHARDS_DIR = "shards";
+	public static final String MANIFEST = "shards.manifest";
+
+	public static File shardDir(File indexDir, int shard) {
+		return new File(new File(indexDir, SHARDS_DIR), String.format(
+				"shard-%03d", shard));
+	}
+
+	public static File manifestFile(File indexDir) {
+		return new File(indexDir, MANIFEST);
+	}
+
+	/* writes the manifest, one shard directory (relative to the index) per line */
+	public static void writeManifest(File indexDir, List<File> shards)
+			throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for (File shard : shards)
+			lines.add(SHARDS_DIR + "/" + shard.getName());
+		File tmp = new File(indexDir, MANIFEST + ".tmp");
+		FileUtils.writeLines(tmp, Charsets.UTF_8.name(), lines);
+		File manifest = manifestFile(indexDir);
+		if ((manifest.exists() && !manifest.delete()) || !tmp.renameTo(manifest))
+			throw new IOException("Could not write " + manifest);
+	}
+
+	/* the shard directories of the index, null if it is not a sharded index */
+	public static List<File> readManifest(File indexDir) throws IOException {
+		File manifest = manifestFile(indexDir);
+		if (!manifest.exists())
+			return null;
+		List<File> shards = new ArrayList<File>();
+		for (String line : FileUtils.readLines(manifest, Charsets.UTF_8.name())) {
+			if (!line.trim().isEmpty())
+				shards.add(new File(indexDir, line.trim()));
+		}
+		return shards;
+	}
+
+	/* opens the index memory mapped, as a MultiReader over all shards if it is sharded */
+	public static IndexReader open(File indexDir) throws IOException {
+		return open(indexDir, true);
+	}
+
+	/* like open(File), reading with NIOFSDirectory instead if memoryMapped is false */
+	public static IndexReader open(File indexDir, boolean memoryMapped)
+			throws IOException {
+		List<File> shards = readManifest(indexDir);
+		if (shards == null)
+			return DirectoryReader.open(directory(indexDir, memoryMapped));
+		IndexReader[] readers = new IndexReader[shards.size()];
+		for (int i = 0; i < readers.length; i++)
+			readers[i] = DirectoryReader.open(directory(shards.get(i),
+					memoryMapped));
+		return new MultiReader(readers);
+	}
+
+	private static Directory directory(File dir, boolean memoryMapped)
+			throws IOException {
+		return memoryMapped ? new MMapDirectory(dir) : new NIOFSDirectory(dir);
+	}
+
+}
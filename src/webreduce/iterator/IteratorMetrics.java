@@ -0,0 +1,391 @@
+package webreduce.iterator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+
+/*
+ * Throughput and latency metrics of a ParallelIterator: bytes read and inflated, records, latency
+ * histograms of parsing and processing, queue depths and the utilization of the workers, each and
+ * in total. Comparing them tells whether a run is bound by I/O, by inflating or by the code in
+ * process(), or by a few workers stuck on large files.
+ *
+ * The metrics are exposed as a JMX MBean (webreduce.iterator:type=IteratorMetrics) and can be
+ * written as periodic JSON snapshots, one object per line.
+ */
+public class IteratorMetrics implements DynamicMBean {
+
+	private static final Gson gson = new Gson();
+
+	public interface Gauge {
+		long value();
+	}
+
+	/*
+	 * Latency histogram with power-of-two nanosecond buckets. Records are striped over several
+	 * copies of the counters by thread, each on its own cache lines, so that the workers recording
+	 * a latency per record don't contend on shared counters; reads merge the stripes.
+	 */
+	public static class Histogram {
+		private static final int BUCKETS = 64;
+		private static final int COUNT = BUCKETS;
+		private static final int SUM = BUCKETS + 1;
+		private static final int MAX = BUCKETS + 2;
+		// longs per stripe, padded to keep stripes on separate cache lines
+		private static final int STRIDE = BUCKETS + 8;
+		private static final int STRIPES = stripes();
+
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+				* STRIDE);
+
+		private static int stripes() {
+			int n = Integer.highestOneBit(Math.max(2, Runtime.getRuntime()
+					.availableProcessors()) * 2 - 1) * 2;
+			return Math.min(n, 64);
+		}
+
+		/* sequential thread ids land on distinct stripes */
+		private static int stripe() {
+			long id = Thread.currentThread().getId();
+			return (int) (id ^ id >>> 32) & (STRIPES - 1);
+		}
+
+		public void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			int base = stripe() * STRIDE;
+			cells.incrementAndGet(base + 64 - Long.numberOfLeadingZeros(nanos));
+			cells.incrementAndGet(base + COUNT);
+			cells.addAndGet(base + SUM, nanos);
+			long m;
+			while (nanos > (m = cells.get(base + MAX))
+					&& !cells.compareAndSet(base + MAX, m, nanos))
+				;
+		}
+
+		private long total(int offset) {
+			long t = 0;
+			for (int s = 0; s < STRIPES; s++)
+				t += cells.get(s * STRIDE + offset);
+			return t;
+		}
+
+		public long getCount() {
+			return total(COUNT);
+		}
+
+		/* the sum of all recorded latencies */
+		public long getSumNanos() {
+			return total(SUM);
+		}
+
+		public double getMeanMicros() {
+			long c = getCount();
+			return c == 0 ? 0 : getSumNanos() / (double) c / 1000;
+		}
+
+		public double getMaxMicros() {
+			long m = 0;
+			for (int s = 0; s < STRIPES; s++)
+				m = Math.max(m, cells.get(s * STRIDE + MAX));
+			return m / 1000.0;
+		}
+
+		/* upper bound of the bucket holding the given quantile */
+		public double getPercentileMicros(double quantile) {
+			long[] buckets = new long[BUCKETS];
+			long c = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				buckets[b] = total(b);
+				c += buckets[b];
+			}
+			if (c == 0)
+				return 0;
+			long rank = (long) Math.ceil(quantile * c);
+			long seen = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				seen += buckets[b];
+				if (seen >= rank)
+					return Math.min((1L << b) / 1000.0, getMaxMicros());
+			}
+			return getMaxMicros();
+		}
+
+		void addTo(Map<String, Object> snapshot, String name) {
+			snapshot.put(name + ".count", getCount());
+			snapshot.put(name + ".meanMicros", getMeanMicros());
+			snapshot.put(name + ".p50Micros", getPercentileMicros(0.5));
+			snapshot.put(name + ".p99Micros", getPercentileMicros(0.99));
+			snapshot.put(name + ".maxMicros", getMaxMicros());
+		}
+	}
+
+	public final AtomicLong compressedBytes = new AtomicLong();
+	public final AtomicLong decompressedBytes = new AtomicLong();
+	// time spent reading decompressed data, i.e. reading from disk and inflating
+	public final AtomicLong inflateNanos = new AtomicLong();
+	// records dropped by the iterator's filter before they were processed
+	public final AtomicLong filteredRecords = new AtomicLong();
+	public final Histogram parseLatency = new Histogram();
+	public final Histogram processLatency = new Histogram();
+
+	private final Gauge records;
+	private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+	// number of process() calls that can run at the same time
+	private volatile int parallelism = 1;
+	// busy nanos per worker of the iterator's WorkStealingExecutor, padded to separate cache lines
+	private static final int WORKER_STRIDE = 8;
+	private volatile AtomicLongArray workerBusyNanos = new AtomicLongArray(0);
+	// busy nanos of all other threads, striped like the histograms
+	private final AtomicLongArray poolBusyNanos = new AtomicLongArray(
+			Histogram.STRIPES * WORKER_STRIDE);
+
+	private volatile long startNanos = System.nanoTime();
+	private ObjectName objectName = null;
+	private ScheduledExecutorService reporter = null;
+	private Writer reportWriter = null;
+
+	public IteratorMetrics(Gauge records) {
+		this.records = records;
+	}
+
+	public void start() {
+		startNanos = System.nanoTime();
+	}
+
+	public void recordParse(long nanos) {
+		parseLatency.record(nanos);
+	}
+
+	/*
+	 * records the time of one process() call, which also counts as busy time of the calling worker,
+	 * or of the pool of other threads (e.g. virtual threads) if it is no worker
+	 */
+	public void recordProcess(long nanos) {
+		processLatency.record(nanos);
+		int w = WorkStealingExecutor.currentWorker() * WORKER_STRIDE;
+		AtomicLongArray busy = workerBusyNanos;
+		if (w >= 0 && w < busy.length())
+			busy.addAndGet(w, nanos);
+		else
+			poolBusyNanos.addAndGet(Histogram.stripe() * WORKER_STRIDE, nanos);
+	}
+
+	/* the number of workers of the iterator's executor, also the parallelism */
+	public void setWorkers(int workers) {
+		workerBusyNanos = new AtomicLongArray(workers * WORKER_STRIDE);
+		setParallelism(workers);
+	}
+
+	/* the number of process() calls that can run at the same time, the base of the utilization */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public synchronized void registerGauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public synchronized void unregisterGauge(String name) {
+		gauges.remove(name);
+	}
+
+	/* current values of all metrics, rates are averages since start() */
+	public synchronized Map<String, Object> snapshot() {
+		Map<String, Object> s = new LinkedHashMap<String, Object>();
+		long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+		double seconds = elapsedNanos / 1e9;
+		long r = records.value();
+		s.put("elapsedSeconds", seconds);
+		s.put("records", r);
+		s.put("recordsPerSecond", r / seconds);
+		s.put("compressedBytes", compressedBytes.get());
+		s.put("compressedBytesPerSecond", compressedBytes.get() / seconds);
+		s.put("decompressedBytes", decompressedBytes.get());
+		s.put("decompressedBytesPerSecond", decompressedBytes.get() / seconds);
+		s.put("inflateSeconds", inflateNanos.get() / 1e9);
+		s.put("filteredRecords", filteredRecords.get());
+		parseLatency.addTo(s, "parse");
+		processLatency.addTo(s, "process");
+		for (Map.Entry<String, Gauge> g : gauges.entrySet())
+			s.put(g.getKey(), g.getValue().value());
+		// per worker index, the short-lived virtual threads of a FileLinesIterator count as one pool
+		AtomicLongArray busy = workerBusyNanos;
+		for (int w = 0; w < busy.length() / WORKER_STRIDE; w++)
+			s.put("utilization.worker-" + w, busy.get(w * WORKER_STRIDE)
+					/ (double) elapsedNanos);
+		long poolBusy = 0;
+		for (int p = 0; p < Histogram.STRIPES; p++)
+			poolBusy += poolBusyNanos.get(p * WORKER_STRIDE);
+		if (poolBusy > 0)
+			s.put("utilization.pool", poolBusy / (double) elapsedNanos
+					/ parallelism);
+		double busyWorkers = processLatency.getSumNanos()
+				/ (double) elapsedNanos;
+		s.put("busyWorkers", busyWorkers);
+		s.put("utilization", busyWorkers / parallelism);
+		return s;
+	}
+
+	public String toJson() {
+		return gson.toJson(snapshot());
+	}
+
+	/* registers the metrics with the platform MBean server under the given name */
+	public synchronized void registerMBean(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName on = new ObjectName(
+					"webreduce.iterator:type=IteratorMetrics,name="
+							+ ObjectName.quote(name));
+			if (server.isRegistered(on))
+				server.unregisterMBean(on);
+			server.registerMBean(this, on);
+			objectName = on;
+		} catch (JMException e) {
+			System.err.println("Could not register metrics MBean: " + e);
+		}
+	}
+
+	public synchronized void unregisterMBean() {
+		if (objectName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+		} catch (JMException e) {
+			// pass
+		}
+		objectName = null;
+	}
+
+	/* appends a JSON snapshot to the given file every periodSeconds */
+	public synchronized void startReporting(File out, long periodSeconds)
+			throws IOException {
+		stopReporting();
+		reportWriter = new OutputStreamWriter(new FileOutputStream(out, true),
+				Charsets.UTF_8);
+		reporter = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "iterator-metrics");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				report();
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	/* stops reporting, after writing a final snapshot */
+	public synchronized void stopReporting() {
+		if (reporter == null)
+			return;
+		reporter.shutdownNow();
+		reporter = null;
+		report();
+		try {
+			reportWriter.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		reportWriter = null;
+	}
+
+	private synchronized void report() {
+		if (reportWriter == null)
+			return;
+		try {
+			reportWriter.write(toJson());
+			reportWriter.write("\n");
+			reportWriter.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/* DynamicMBean, every snapshot entry is a read-only attribute */
+
+	@Override
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		Object value = snapshot().get(attribute);
+		if (value == null)
+			throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Object> s = snapshot();
+		AttributeList list = new AttributeList();
+		for (String a : attributes) {
+			if (s.containsKey(a))
+				list.add(new Attribute(a, s.get(a)));
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("metrics are read-only: "
+				+ attribute.getName());
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName),
+				"metrics have no operations");
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Object> e : snapshot().entrySet())
+			attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue()
+					.getClass().getName(), e.getKey(), true, false, false));
+		return new MBeanInfo(getClass().getName(), "Iterator metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, null, null);
+	}
+
+}
@@ -0,0 +1,49 @@
+package webreduce.iterator;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* adds the bytes read (and optionally the time spent reading) to the given counters */
+class MeteredInputStream extends FilterInputStream {
+
+	private final AtomicLong bytes;
+	private final AtomicLong nanos;
+
+	MeteredInputStream(InputStream in, AtomicLong bytes, AtomicLong nanos) {
+		super(in);
+		this.bytes = bytes;
+		this.nanos = nanos;
+	}
+
+	@Override
+	public int read() throws IOException {
+		long t0 = nanos == null ? 0 : System.nanoTime();
+		int b = super.read();
+		if (nanos != null)
+			nanos.addAndGet(System.nanoTime() - t0);
+		if (b != -1)
+			bytes.incrementAndGet();
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		long t0 = nanos == null ? 0 : System.nanoTime();
+		int n = super.read(b, off, len);
+		if (nanos != null)
+			nanos.addAndGet(System.nanoTime() - t0);
+		if (n > 0)
+			bytes.addAndGet(n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		bytes.addAndGet(skipped);
+		return skipped;
+	}
+
+}
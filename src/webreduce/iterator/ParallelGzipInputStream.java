@@ -0,0 +1,148 @@
+package webreduce.iterator;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Reads a multi-member gzip file, inflating the next few members concurrently on the given
+ * executor (pigz-style) while returning the data in order. The member boundaries come from a
+ * GzipMemberIndex.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+	private final FileChannel channel;
+	private final GzipMemberIndex index;
+	private final ExecutorService executor;
+	private final AtomicLong compressedBytes;
+	private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private int nextMember = 0;
+	private byte[] current = new byte[0];
+	private int pos = 0;
+
+	public ParallelGzipInputStream(File file, GzipMemberIndex index,
+			ExecutorService executor, int readAhead) throws IOException {
+		this(file, index, executor, readAhead, new AtomicLong());
+	}
+
+	/* like above, adding the compressed bytes read to the given counter */
+	public ParallelGzipInputStream(File file, GzipMemberIndex index,
+			ExecutorService executor, int readAhead, AtomicLong compressedBytes)
+			throws IOException {
+		this.channel = new RandomAccessFile(file, "r").getChannel();
+		this.index = index;
+		this.executor = executor;
+		this.compressedBytes = compressedBytes;
+		for (int i = 0; i < readAhead; i++)
+			submitNext();
+	}
+
+	private void submitNext() {
+		if (nextMember == index.size())
+			return;
+		final int member = nextMember++;
+		pending.add(executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				return inflate(member);
+			}
+		}));
+	}
+
+	private byte[] inflate(int member) throws IOException {
+		int length = (int) (index.end(member) - index.start(member));
+		ByteBuffer compressed = ByteBuffer.allocate(length);
+		long position = index.start(member);
+		while (compressed.hasRemaining()) {
+			int n = channel.read(compressed, position + compressed.position());
+			if (n < 0)
+				throw new IOException("unexpected end of file in member "
+						+ member);
+		}
+		compressedBytes.addAndGet(length);
+		byte[] c = compressed.array();
+		// the trailer holds the uncompressed size (mod 2^32)
+		int size = (c[length - 4] & 0xff) | (c[length - 3] & 0xff) << 8
+				| (c[length - 2] & 0xff) << 16 | (c[length - 1] & 0xff) << 24;
+		byte[] out = new byte[size > 0 ? size : 64 * 1024];
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(c));
+		int n = 0;
+		int r;
+		while (true) {
+			if (n == out.length) {
+				int b = in.read();
+				if (b == -1)
+					break;
+				out = Arrays.copyOf(out, out.length * 2);
+				out[n++] = (byte) b;
+				continue;
+			}
+			if ((r = in.read(out, n, out.length - n)) == -1)
+				break;
+			n += r;
+		}
+		in.close();
+		return n == out.length ? out : Arrays.copyOf(out, n);
+	}
+
+	private boolean fill() throws IOException {
+		while (pos == current.length) {
+			Future<byte[]> next = pending.poll();
+			if (next == null)
+				return false;
+			submitNext();
+			try {
+				current = next.get();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException(e.getCause());
+			}
+			pos = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill())
+			return -1;
+		return current[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!fill())
+			return -1;
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Future<byte[]> f : pending)
+			f.cancel(false);
+		pending.clear();
+		channel.close();
+	}
+
+}
@@ -1,31 +1,56 @@
 package webreduce.iterator;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /* Abstract base class for that enabled parallel iteration over a set of files */
 public abstract class ParallelIterator {
 
+	/* bound on the queued tasks per worker, submitters block beyond that */
+	private static final int QUEUED_TASKS_PER_THREAD = 64;
+
 	protected ExecutorService executorService;
 	protected long startTime;
 	protected AtomicInteger i;
 	protected AtomicInteger corruptFiles;
 	protected int maxThreads;
+	protected final IteratorMetrics metrics;
+	private File metricsReport = null;
+	private int metricsReportPeriod;
 
 	public ParallelIterator(int maxThreads) {
 		this.maxThreads = maxThreads;
-		this.executorService = new ThreadPoolExecutor(maxThreads, // core
-				maxThreads, // maximum thread pool size
-				1, // time to wait before resizing pool
-				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxThreads,
-						true), new ThreadPoolExecutor.CallerRunsPolicy());
+		this.executorService = new WorkStealingExecutor(maxThreads,
+				maxThreads * QUEUED_TASKS_PER_THREAD);
 
 		this.i = new AtomicInteger(0);
 		this.corruptFiles = new AtomicInteger(0);
+
+		this.metrics = new IteratorMetrics(new IteratorMetrics.Gauge() {
+			@Override
+			public long value() {
+				return i.get();
+			}
+		});
+		metrics.setWorkers(maxThreads);
+		metrics.registerGauge("corruptFiles", new IteratorMetrics.Gauge() {
+			@Override
+			public long value() {
+				return corruptFiles.get();
+			}
+		});
+		if (executorService instanceof WorkStealingExecutor) {
+			final WorkStealingExecutor executor = (WorkStealingExecutor) executorService;
+			metrics.registerGauge("queuedTasks", new IteratorMetrics.Gauge() {
+				@Override
+				public long value() {
+					return executor.getQueuedTaskCount();
+				}
+			});
+		}
 	}
 
 	public ParallelIterator() {
@@ -36,8 +61,29 @@ public abstract class ParallelIterator {
 	public abstract void iterate(String inPath) throws IOException,
 			InterruptedException;
 
+	public IteratorMetrics getMetrics() {
+		return metrics;
+	}
+
+	/* appends a JSON snapshot of the metrics to the given file every periodSeconds while iterating */
+	public void setMetricsReport(File out, int periodSeconds) {
+		this.metricsReport = out;
+		this.metricsReportPeriod = periodSeconds;
+	}
+
 	protected void start() {
 		startTime = System.currentTimeMillis();
+		metrics.start();
+		metrics.registerMBean(getClass().getSimpleName() + "@"
+				+ Integer.toHexString(System.identityHashCode(this)));
+		if (metricsReport != null) {
+			try {
+				metrics.startReporting(metricsReport, metricsReportPeriod);
+			} catch (IOException e) {
+				System.err.println("Could not write metrics to "
+						+ metricsReport + ": " + e);
+			}
+		}
 	}
 
 	protected void reportCorrputFile() {
@@ -61,6 +107,8 @@ public abstract class ParallelIterator {
 		System.out.println("Tasks finished");
 		System.out.println("There were " + corruptFiles.get()
 				+ " corrupt files.");
+		metrics.stopReporting();
+		metrics.unregisterMBean();
 	}
 
 }
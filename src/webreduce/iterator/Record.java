@@ -0,0 +1,67 @@
+package webreduce.iterator;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import com.google.common.base.Charsets;
+
+/*
+ * A single key/value line of the corpus as a slice of a byte buffer. Key and value are only
+ * decoded when asked for. Instances are reused by the iterators, so a Record (and its buffer)
+ * is only valid during the process(Record) call it was passed to.
+ */
+public class Record {
+
+	private static final Charset utf8 = Charsets.UTF_8;
+
+	private byte[] buffer;
+	private int keyStart, keyEnd;
+	private int valueStart, valueEnd;
+
+	void set(byte[] buffer, int keyStart, int keyEnd, int valueStart,
+			int valueEnd) {
+		this.buffer = buffer;
+		this.keyStart = keyStart;
+		this.keyEnd = keyEnd;
+		this.valueStart = valueStart;
+		this.valueEnd = valueEnd;
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	public int getKeyOffset() {
+		return keyStart;
+	}
+
+	public int getKeyLength() {
+		return keyEnd - keyStart;
+	}
+
+	public int getValueOffset() {
+		return valueStart;
+	}
+
+	public int getValueLength() {
+		return valueEnd - valueStart;
+	}
+
+	/* the key decoded as UTF-8, "" for lines without a key */
+	public String key() {
+		return new String(buffer, keyStart, keyEnd - keyStart, utf8);
+	}
+
+	/* the value (usually the JSON serialized table) decoded as UTF-8 */
+	public String value() {
+		return new String(buffer, valueStart, valueEnd - valueStart, utf8);
+	}
+
+	/* the raw value bytes as a stream, e.g. for Dataset.fromJson(InputStream) */
+	public InputStream valueStream() {
+		return new ByteArrayInputStream(buffer, valueStart, valueEnd
+				- valueStart);
+	}
+
+}
@@ -0,0 +1,116 @@
+package webreduce.iterator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/*
+ * Splits a stream of corpus lines ("key<TAB>value\n") into Records directly on a reusable byte
+ * buffer, without decoding or copying the lines. Framing gives the same key and value as the old
+ * String.split("\t") based loop: if a non-empty field follows the first tab, the key is the first
+ * field and the value the second (which may be empty, as in "a<TAB><TAB>c"). Otherwise split()
+ * dropped the trailing empty fields, and the key is empty and the value the first field. Lines of
+ * tabs only, on which the old loop failed, have an empty key and value. "\r\n" line endings are
+ * accepted.
+ */
+public class RecordReader implements Closeable {
+
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private final InputStream in;
+	private final Record record = new Record();
+	private byte[] buf;
+	private int start = 0; // start of the unconsumed data
+	private int limit = 0; // end of the valid data
+	private boolean eof = false;
+
+	public RecordReader(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	public RecordReader(InputStream in, int bufferSize) {
+		this.in = in;
+		this.buf = new byte[bufferSize];
+	}
+
+	/*
+	 * returns the next record or null at the end of the stream, the returned object is reused by
+	 * the next call
+	 */
+	public Record next() throws IOException {
+		int scan = start;
+		while (true) {
+			for (int p = scan; p < limit; p++) {
+				if (buf[p] == '\n') {
+					frame(start, p);
+					start = p + 1;
+					return record;
+				}
+			}
+			if (eof) {
+				if (start < limit) {
+					frame(start, limit);
+					start = limit;
+					return record;
+				}
+				return null;
+			}
+			scan = limit;
+			if (start > 0) {
+				// move the partial line to the front of the buffer
+				System.arraycopy(buf, start, buf, 0, limit - start);
+				scan -= start;
+				limit -= start;
+				start = 0;
+			}
+			if (limit == buf.length)
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			int n = in.read(buf, limit, buf.length - limit);
+			if (n == -1)
+				eof = true;
+			else
+				limit += n;
+		}
+	}
+
+	private void frame(int lineStart, int lineEnd) {
+		if (lineEnd > lineStart && buf[lineEnd - 1] == '\r')
+			lineEnd--;
+		int tab = indexOfTab(lineStart, lineEnd);
+		if (tab >= 0) {
+			int valueEnd = indexOfTab(tab + 1, lineEnd);
+			if (valueEnd < 0)
+				valueEnd = lineEnd;
+			if (valueEnd > tab + 1 || hasField(valueEnd, lineEnd)) {
+				record.set(buf, lineStart, tab, tab + 1, valueEnd);
+				return;
+			}
+			lineEnd = tab;
+		}
+		record.set(buf, lineStart, lineStart, lineStart, lineEnd);
+	}
+
+	/* true if buf[from, to) has anything but tabs, i.e. split() keeps the fields before it */
+	private boolean hasField(int from, int to) {
+		for (int p = from; p < to; p++) {
+			if (buf[p] != '\t')
+				return true;
+		}
+		return false;
+	}
+
+	private int indexOfTab(int from, int to) {
+		for (int p = from; p < to; p++) {
+			if (buf[p] == '\t')
+				return p;
+		}
+		return -1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
@@ -4,64 +4,86 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.Bits;
 
 /*
  * Specialized version of the ParallelIterator that iterates a Lucene index instead
- * of a raw DWTC dataset 
+ * of a raw DWTC dataset
+ *
+ * The documents of each segment are split into small chunks, which the workers take from a shared
+ * cursor until none are left, so no worker idles while others still have expensive documents to
+ * go. Deleted documents are skipped and only the stored fields returned by fieldsToLoad() are
+ * decoded.
  */
 public abstract class WebreduceIndexIterator extends ParallelIterator {
 
+	protected int chunkSize = 1024;
+	protected boolean memoryMapped = true;
+
+	/* a range of documents, global doc ids from start (inclusive) to end (exclusive) */
 	protected class Job {
 		public int start;
 		public int end;
+		private final AtomicReaderContext leaf;
 
-		private Job(int start, int end) {
+		private Job(AtomicReaderContext leaf, int start, int end) {
+			this.leaf = leaf;
 			this.start = start;
 			this.end = end;
 		}
 	}
 
+	/* number of documents per chunk of work */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/* memory map the index (the default), or read it with NIOFSDirectory */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/* the stored fields process() needs, null loads all of them */
+	protected Set<String> fieldsToLoad() {
+		return null;
+	}
+
 	@Override
 	public void iterate(String inPath) throws IOException, InterruptedException {
 		File inDir = new File(inPath);
-		IndexSearcher searcher = new IndexSearcher(
-				DirectoryReader.open(new NIOFSDirectory(inDir)));
-		final IndexReader reader = searcher.getIndexReader();
+		// sharded indexes are iterated as one
+		final IndexReader reader = IndexShards.open(inDir, memoryMapped);
 
 		System.out.println("Iterating " + inDir);
 
 		// create jobs
-		int jobSize = (int) Math.ceil((double) reader.maxDoc() / maxThreads);
-		int x = 0;
-
-		List<Job> jobs = new ArrayList<Job>(maxThreads);
-		for (int i = 0; i < maxThreads - 1; i++) {
-			jobs.add(new Job(x, x + jobSize));
-			x += jobSize;
+		final List<Job> jobs = new ArrayList<Job>();
+		for (AtomicReaderContext leaf : reader.leaves()) {
+			int maxDoc = leaf.reader().maxDoc();
+			for (int x = 0; x < maxDoc; x += chunkSize)
+				jobs.add(new Job(leaf, leaf.docBase + x, leaf.docBase
+						+ Math.min(x + chunkSize, maxDoc)));
 		}
-		// final job
-		jobs.add(new Job(x, reader.maxDoc()));
+		final AtomicInteger cursor = new AtomicInteger(0);
+		final Set<String> fields = fieldsToLoad();
 
 		start();
-		for (final Job job : jobs) {
+		for (int t = 0; t < maxThreads; t++) {
 			executorService.submit(new Runnable() {
 				@Override
 				public void run() {
 					try {
-						for (int i = job.start; i < job.end; i++) {
-							// do the actual processing
-							Document doc = reader.document(i);
-							process(i, doc);
-							finishedItem();
-						}
-						finishProcessFile(job);
-
+						int j;
+						while ((j = cursor.getAndIncrement()) < jobs.size())
+							processJob(jobs.get(j), fields);
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
@@ -69,11 +91,34 @@ public abstract class WebreduceIndexIterator extends ParallelIterator {
 			});
 		}
 		close();
+		reader.close();
+	}
+
+	private void processJob(Job job, Set<String> fields) throws IOException {
+		AtomicReader leafReader = job.leaf.reader();
+		Bits liveDocs = leafReader.getLiveDocs();
+		int docBase = job.leaf.docBase;
+		for (int i = job.start; i < job.end; i++) {
+			if (liveDocs != null && !liveDocs.get(i - docBase))
+				continue;
+			// do the actual processing
+			long t0 = System.nanoTime();
+			DocumentStoredFieldVisitor visitor = fields == null ? new DocumentStoredFieldVisitor()
+					: new DocumentStoredFieldVisitor(fields);
+			leafReader.document(i - docBase, visitor);
+			long t1 = System.nanoTime();
+			metrics.recordParse(t1 - t0);
+			process(i, visitor.getDocument());
+			metrics.recordProcess(System.nanoTime() - t1);
+			finishedItem();
+		}
+		finishProcessFile(job);
 	}
 
 	protected abstract void process(int docId, Document value)
 			throws IOException;
 
+	/* called on the worker thread after each job (chunk of documents) it processed */
 	protected abstract void finishProcessFile(Job job) throws IOException;
 
 }
@@ -5,9 +5,22 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipException;
 
@@ -15,17 +28,118 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.IOFileFilter;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 
-import com.google.common.io.LineReader;
+import webreduce.data.Dataset;
+import webreduce.data.DatasetFilter;
+import webreduce.data.DatasetProjection;
 
-/* Most interesting subclass of ParallelItereator, subclass this to create custom iterators that work 
+/* Most interesting subclass of ParallelItereator, subclass this to create custom iterators that work
  * with the DWTC dataset.
+ *
+ * By default, each .gz file is handled by one worker from start to end. With setPipelineReaders(n),
+ * the iterator instead runs a staged pipeline: n files at a time are decompressed and split into
+ * lines by dedicated reader threads, and the resulting batches of records are spread over all
+ * maxThreads workers through a bounded queue, so that a few big files no longer dictate the
+ * wall-clock time. In both modes, finishProcessFile(f) is called on a worker thread after that
+ * worker's last record of f, so thread-local state can be flushed there as before (in pipelined mode
+ * this means it is called once for every worker that processed records of f).
+ *
+ * Lines are framed directly on byte buffers (see RecordReader) and handed to process(Record), which
+ * decodes them for process(String, String) unless a subclass overrides it to decode only what it
+ * needs. Numeric analyses of a parsed table can read its columns as primitives with
+ * Dataset.getTypedColumns(), computed on the worker on first use.
  */
 public abstract class WebreduceIterator extends ParallelIterator {
 
+	/* size of the decompressed chunks handed from the decompress to the line-split stage */
+	private static final int CHUNK_SIZE = 64 * 1024;
+	/* number of decompressed chunks buffered per file */
+	private static final int CHUNK_QUEUE_SIZE = 16;
+
+	/* number of gzip members inflated ahead of the reader in parallel inflate mode */
+	private static final int INFLATE_READ_AHEAD = 8;
+
+	protected int pipelineReaders = 0;
+	protected int pipelineBatchSize = 256;
+	protected boolean parallelInflate = false;
+	protected CheckpointJournal checkpoint = null;
+	protected DatasetFilter filter = null;
+	private ExecutorService inflatePool = null;
+	private final ThreadLocal<File> currentFile = new ThreadLocal<File>();
+
+	public WebreduceIterator(int maxThreads) {
+		super(maxThreads);
+	}
+
+	public WebreduceIterator() {
+		super();
+	}
+
+	/*
+	 * Enables the pipelined mode with the given number of files being read concurrently, 0
+	 * restores the default one-worker-per-file mode.
+	 */
+	public void setPipelineReaders(int pipelineReaders) {
+		this.pipelineReaders = pipelineReaders;
+	}
+
+	/* number of records handed to a worker at once in pipelined mode */
+	public void setPipelineBatchSize(int pipelineBatchSize) {
+		this.pipelineBatchSize = pipelineBatchSize;
+	}
+
+	/*
+	 * Inflates the members of multi-member gzip files concurrently (see ParallelGzipInputStream).
+	 * Member boundaries are recorded in a sidecar index on the first pass over a file, single-member
+	 * files can be converted once with GzipMemberIndex --rewrite.
+	 */
+	public void setParallelInflate(boolean parallelInflate) {
+		this.parallelInflate = parallelInflate;
+	}
+
+	/*
+	 * Drops the records whose table doesn't match the filter before process(Record) is called,
+	 * evaluated on the raw JSON without deserializing it. In pipelined mode records are dropped by
+	 * the reader threads, before they are batched. The number of dropped records is reported as
+	 * the filteredRecords metric.
+	 */
+	public void setFilter(DatasetFilter filter) {
+		this.filter = filter;
+	}
+
+	/*
+	 * Records completed files (and snapshotState()) in the given journal, and skips the files
+	 * already recorded there when iterating the same input again. Not supported together with
+	 * setPipelineReaders: a worker there mixes batches of several files in its thread-local state,
+	 * so no snapshot holds exactly the results of the completed files.
+	 */
+	public void setCheckpoint(File journal) throws IOException {
+		this.checkpoint = new CheckpointJournal(journal);
+	}
+
 	@Override
 	public void iterate(String inPath) throws IOException, InterruptedException {
+		if (checkpoint != null && pipelineReaders > 0)
+			throw new IllegalStateException(
+					"checkpoints are not supported with pipelined readers");
 		File inDir = new File(inPath);
-		Collection<File> files = FileUtils.listFiles(inDir, new IOFileFilter() {
+		Collection<File> files = listFiles(inDir);
+		if (checkpoint != null)
+			files = resume(inDir, files);
+		files = largestFirst(files);
+		start();
+		if (pipelineReaders > 0)
+			iteratePipelined(files);
+		else
+			iteratePerFile(files);
+		close();
+	}
+
+	/*
+	 * the corpus files, with canonical paths, so that a file has the same path in every run, no
+	 * matter how the input was given (see getCurrentFile())
+	 */
+	protected Collection<File> listFiles(File inDir) throws IOException {
+		Collection<File> found = FileUtils.listFiles(inDir, new IOFileFilter() {
 			@Override
 			public boolean accept(File pathfile, String pathname) {
 				return pathname.endsWith(".gz");
@@ -36,37 +150,110 @@ public abstract class WebreduceIterator extends ParallelIterator {
 				return pathfile.getName().endsWith(".gz");
 			}
 		}, TrueFileFilter.INSTANCE);
-		start();
+		List<File> files = new ArrayList<File>(found.size());
+		for (File f : found)
+			files.add(f.getCanonicalFile());
+		return files;
+	}
+
+	/*
+	 * the biggest files take longest, starting them first avoids a long tail of a few workers
+	 * finishing big files picked up last
+	 */
+	private List<File> largestFirst(Collection<File> files) {
+		List<File> sorted = new ArrayList<File>(files);
+		Collections.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(f2.length(), f1.length());
+			}
+		});
+		return sorted;
+	}
+
+	private Collection<File> resume(File inDir, Collection<File> files)
+			throws IOException {
+		checkpoint.open(inDir);
+		boolean resumed = checkpoint.isResumed();
+		if (resumed && checkpoint.getState() != null)
+			restoreState(checkpoint.getState());
+		List<File> pending = new ArrayList<File>();
+		for (File f : files) {
+			if (checkpoint.isDone(f))
+				continue;
+			if (resumed)
+				discardPartialResults(f);
+			pending.add(f);
+		}
+		if (resumed)
+			System.out.println("Resuming from checkpoint, skipping "
+					+ (files.size() - pending.size()) + " completed files.");
+		return pending;
+	}
+
+	/* opens the decompressed stream of a corpus file */
+	protected InputStream openStream(File f) throws IOException {
+		return new MeteredInputStream(openDecompressedStream(f),
+				metrics.decompressedBytes, metrics.inflateNanos);
+	}
+
+	private InputStream openDecompressedStream(File f) throws IOException {
+		if (parallelInflate) {
+			GzipMemberIndex index = GzipMemberIndex.load(f);
+			if (index == null)
+				return GzipMemberIndex.indexingStream(f,
+						metrics.compressedBytes);
+			if (index.isSplittable())
+				return new ParallelGzipInputStream(f, index, inflatePool(),
+						INFLATE_READ_AHEAD, metrics.compressedBytes);
+		}
+		return new GZIPInputStream(new BufferedInputStream(
+				new MeteredInputStream(new FileInputStream(f),
+						metrics.compressedBytes, null)), 64 * 1024);
+	}
+
+	private synchronized ExecutorService inflatePool() {
+		if (inflatePool == null)
+			inflatePool = Executors.newFixedThreadPool(maxThreads);
+		return inflatePool;
+	}
+
+	private void iteratePerFile(Collection<File> files) {
 		for (final File f : files) {
 			executorService.submit(new Runnable() {
 				@Override
 				public void run() {
-					Reader reader = null;
+					RecordReader reader = null;
+					currentFile.set(f);
 					try {
-						reader = new InputStreamReader(
-								new GZIPInputStream(new BufferedInputStream(
-										new FileInputStream(f))));
-						LineReader lReader = new LineReader(reader);
+						reader = new RecordReader(openStream(f));
 
 						// do the actual processing
+						long filtered = 0;
 						while (true) {
-							String l = lReader.readLine();
-							if (l == null)
+							Record r = reader.next();
+							if (r == null)
 								break;
-							// process webtable
-							String[] splitLine = l.split("\t");
-							String key, value;
-							if (splitLine.length > 1) {
-								key = splitLine[0];
-								value = splitLine[1];
-							} else {
-								key = "";
-								value = splitLine[0];
+							if (!accept(r)) {
+								filtered++;
+								continue;
 							}
-							process(key, value);
+							long t0 = System.nanoTime();
+							process(r);
+							metrics.recordProcess(System.nanoTime() - t0);
 							finishedItem();
 						}
-						finishProcessFile(f);
+						metrics.filteredRecords.addAndGet(filtered);
+						if (checkpoint == null) {
+							finishProcessFile(f);
+							fileCompleted(f);
+						} else {
+							// state flushed in finishProcessFile is recorded together with f
+							synchronized (checkpoint) {
+								finishProcessFile(f);
+								fileCompleted(f);
+							}
+						}
 						reader.close();
 					} catch (ZipException e) {
 						System.err.println("Corrupt file: " + f.toString());
@@ -81,9 +268,417 @@ public abstract class WebreduceIterator extends ParallelIterator {
 				}
 			});
 		}
-		close();
 	}
 
+	/* bookkeeping for one file in pipelined mode */
+	private static class FileState {
+		final File file;
+		// batches not yet processed, plus one while the file is still being read
+		final AtomicInteger pending = new AtomicInteger(1);
+		// workers that processed records of the file but did not call finishProcessFile yet
+		final AtomicInteger unfinished = new AtomicInteger(0);
+		volatile boolean corrupt = false;
+
+		FileState(File file) {
+			this.file = file;
+		}
+	}
+
+	/*
+	 * a batch of records of one file, the unit of work of the parse/process stage. The raw lines are
+	 * copied back to back into data, bounds holds keyStart, keyEnd, valueStart, valueEnd per record.
+	 */
+	private static class Batch {
+		static final Batch END = new Batch(null, 0);
+
+		final FileState file;
+		byte[] data;
+		int length = 0;
+		int[] bounds;
+		int size = 0;
+
+		Batch(FileState file, int capacity) {
+			this.file = file;
+			this.bounds = new int[capacity * 4];
+			this.data = new byte[capacity * 1024];
+		}
+
+		void add(Record r) {
+			int keyLength = r.getKeyLength();
+			int valueLength = r.getValueLength();
+			if (length + keyLength + valueLength > data.length)
+				data = Arrays.copyOf(data, Math.max(data.length * 2, length
+						+ keyLength + valueLength));
+			int b = size * 4;
+			bounds[b] = length;
+			System.arraycopy(r.getBuffer(), r.getKeyOffset(), data, length,
+					keyLength);
+			length += keyLength;
+			bounds[b + 1] = length;
+			bounds[b + 2] = length;
+			System.arraycopy(r.getBuffer(), r.getValueOffset(), data, length,
+					valueLength);
+			length += valueLength;
+			bounds[b + 3] = length;
+			size++;
+		}
+
+		boolean isFull() {
+			return size * 4 == bounds.length;
+		}
+	}
+
+	private void iteratePipelined(Collection<File> files)
+			throws InterruptedException {
+		final BlockingQueue<Batch> batches = new ArrayBlockingQueue<Batch>(
+				maxThreads * 4);
+		metrics.registerGauge("pipelineQueuedBatches",
+				new IteratorMetrics.Gauge() {
+					@Override
+					public long value() {
+						return batches.size();
+					}
+				});
+		final ExecutorService inflaters = Executors
+				.newFixedThreadPool(pipelineReaders);
+		ExecutorService splitters = Executors
+				.newFixedThreadPool(pipelineReaders);
+
+		// parse/process stage
+		for (int t = 0; t < maxThreads; t++) {
+			executorService.submit(new Runnable() {
+				@Override
+				public void run() {
+					processBatches(batches);
+				}
+			});
+		}
+
+		// decompress and line-split stages
+		for (final File f : files) {
+			splitters.submit(new Runnable() {
+				@Override
+				public void run() {
+					splitFile(new FileState(f), inflaters, batches);
+				}
+			});
+		}
+		splitters.shutdown();
+		splitters.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		inflaters.shutdown();
+		for (int t = 0; t < maxThreads; t++)
+			batches.put(Batch.END);
+		metrics.unregisterGauge("pipelineQueuedBatches");
+	}
+
+	private void splitFile(FileState state, ExecutorService inflaters,
+			BlockingQueue<Batch> batches) {
+		final File f = state.file;
+		final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(
+				CHUNK_QUEUE_SIZE);
+		final ChunkInputStream chunkIn = new ChunkInputStream(chunks);
+		inflaters.submit(new Runnable() {
+			@Override
+			public void run() {
+				inflate(f, chunkIn);
+			}
+		});
+
+		long filtered = 0;
+		try {
+			RecordReader reader = new RecordReader(chunkIn);
+			Batch batch = new Batch(state, pipelineBatchSize);
+			while (true) {
+				Record r = reader.next();
+				if (r == null)
+					break;
+				if (!accept(r)) {
+					filtered++;
+					continue;
+				}
+				batch.add(r);
+				if (batch.isFull()) {
+					state.pending.incrementAndGet();
+					batches.put(batch);
+					batch = new Batch(state, pipelineBatchSize);
+				}
+			}
+			if (batch.size > 0) {
+				state.pending.incrementAndGet();
+				batches.put(batch);
+			}
+		} catch (ZipException e) {
+			System.err.println("Corrupt file: " + f.toString());
+			state.corrupt = true;
+			reportCorrputFile();
+		} catch (IOException e) {
+			state.corrupt = true;
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			metrics.filteredRecords.addAndGet(filtered);
+			chunkIn.abort();
+			state.pending.decrementAndGet();
+		}
+	}
+
+	private void inflate(File f, ChunkInputStream chunkIn) {
+		InputStream in = null;
+		try {
+			in = openStream(f);
+			while (!chunkIn.isAborted()) {
+				byte[] chunk = new byte[CHUNK_SIZE];
+				int n = 0;
+				int r;
+				while (n < CHUNK_SIZE
+						&& (r = in.read(chunk, n, CHUNK_SIZE - n)) != -1)
+					n += r;
+				if (n == 0)
+					break;
+				if (n < CHUNK_SIZE) {
+					byte[] last = new byte[n];
+					System.arraycopy(chunk, 0, last, 0, n);
+					chunk = last;
+				}
+				if (!chunkIn.offer(chunk))
+					break;
+			}
+			chunkIn.finish(null);
+		} catch (IOException e) {
+			chunkIn.finish(e);
+		} catch (InterruptedException e) {
+			chunkIn.finish(new IOException(e));
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// pass
+				}
+			}
+		}
+	}
+
+	private void processBatches(BlockingQueue<Batch> batches) {
+		Set<FileState> touched = new HashSet<FileState>();
+		Record r = new Record();
+		try {
+			while (true) {
+				Batch batch = batches.take();
+				if (batch == Batch.END)
+					break;
+				// registered before the batch counts as processed, see finishFiles
+				if (touched.add(batch.file))
+					batch.file.unfinished.incrementAndGet();
+				currentFile.set(batch.file.file);
+				try {
+					int[] bounds = batch.bounds;
+					for (int b = 0; b < batch.size * 4; b += 4) {
+						r.set(batch.data, bounds[b], bounds[b + 1],
+								bounds[b + 2], bounds[b + 3]);
+						long t0 = System.nanoTime();
+						process(r);
+						metrics.recordProcess(System.nanoTime() - t0);
+						finishedItem();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				batch.file.pending.decrementAndGet();
+				finishFiles(touched, false);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finishFiles(touched, true);
+	}
+
+	/* calls finishProcessFile for all files touched by this worker that were fully processed */
+	private void finishFiles(Set<FileState> touched, boolean all) {
+		Iterator<FileState> it = touched.iterator();
+		while (it.hasNext()) {
+			FileState state = it.next();
+			if (all || state.pending.get() == 0) {
+				it.remove();
+				if (state.corrupt)
+					continue;
+				try {
+					finishFile(state);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void finishFile(FileState state) throws IOException {
+		finishProcessFile(state.file);
+		// the last worker to finish after all batches were processed completes the file
+		if (state.unfinished.decrementAndGet() == 0 && state.pending.get() == 0)
+			fileCompleted(state.file);
+	}
+
+	/*
+	 * InputStream view on the chunks produced by the decompress stage, the end of the stream (or a
+	 * decompression error) is signaled through finish().
+	 */
+	private static class ChunkInputStream extends InputStream {
+		private static final byte[] EOF = new byte[0];
+
+		private final BlockingQueue<byte[]> chunks;
+		private volatile IOException error;
+		private volatile boolean aborted = false;
+		private byte[] current;
+		private int pos;
+
+		ChunkInputStream(BlockingQueue<byte[]> chunks) {
+			this.chunks = chunks;
+		}
+
+		/* hands a chunk to the consumer, returns false if the consumer stopped reading */
+		boolean offer(byte[] chunk) throws InterruptedException {
+			while (!aborted) {
+				if (chunks.offer(chunk, 100, TimeUnit.MILLISECONDS))
+					return true;
+			}
+			return false;
+		}
+
+		void finish(IOException error) {
+			this.error = error;
+			try {
+				offer(EOF);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/* called by the consumer when it stops reading, unblocks the producer */
+		void abort() {
+			aborted = true;
+			chunks.clear();
+		}
+
+		boolean isAborted() {
+			return aborted;
+		}
+
+		private boolean fill() throws IOException {
+			while (current == null || pos == current.length) {
+				if (current == EOF)
+					break;
+				try {
+					current = chunks.take();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				pos = 0;
+			}
+			if (current == EOF) {
+				if (error != null)
+					throw error;
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill())
+				return -1;
+			return current[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int n = Math.min(len, current.length - pos);
+			System.arraycopy(current, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+	}
+
+	@Override
+	protected void close() throws IOException, InterruptedException {
+		super.close();
+		synchronized (this) {
+			if (inflatePool != null) {
+				inflatePool.shutdownNow();
+				inflatePool = null;
+			}
+		}
+	}
+
+	/* the corpus file whose records are currently processed by this thread */
+	protected File getCurrentFile() {
+		return currentFile.get();
+	}
+
+	/*
+	 * Called once per file after all finishProcessFile calls for it, records the file in the
+	 * checkpoint journal if there is one.
+	 */
+	protected void fileCompleted(File f) throws IOException {
+		if (checkpoint != null)
+			checkpoint.markDone(Collections.singleton(f), snapshotState());
+	}
+
+	/*
+	 * State to be saved with each checkpoint, it must only contain the results of files for which
+	 * finishProcessFile was called. Checkpoints are only taken in per-file mode, where
+	 * finishProcessFile and the checkpoint run under one lock, so results flushed there are recorded
+	 * atomically with their file.
+	 */
+	protected String snapshotState() {
+		return null;
+	}
+
+	/* restores the state of the last checkpoint before resuming */
+	protected void restoreState(String state) {
+	}
+
+	/* called when resuming for every file that is processed again and may have partial results */
+	protected void discardPartialResults(File f) throws IOException {
+	}
+
+	/* true if the table of the record matches the filter, or there is no filter */
+	private boolean accept(Record r) {
+		return filter == null
+				|| filter.matches(r.getBuffer(), r.getValueOffset(),
+						r.getValueLength());
+	}
+
+	/* deserializes the table of a record, recording the parse latency in the metrics */
+	protected Dataset parseDataset(Record record) {
+		long t0 = System.nanoTime();
+		Dataset ds = Dataset.fromJson(record.valueStream());
+		metrics.recordParse(System.nanoTime() - t0);
+		return ds;
+	}
+
+	/* like parseDataset(Record), but only deserializes the given projection */
+	protected Dataset parseDataset(Record record, DatasetProjection projection) {
+		long t0 = System.nanoTime();
+		Dataset ds = projection.fromJson(record.valueStream());
+		metrics.recordParse(System.nanoTime() - t0);
+		return ds;
+	}
+
+	/*
+	 * Called for every record of the corpus, by default with the whole line decoded into
+	 * process(String, String). Subclasses on the hot path override this to work on the raw bytes and
+	 * decode only what they need.
+	 */
+	protected void process(Record record) throws IOException {
+		process(record.key(), record.value());
+	}
+
+	/* the key and the JSON value of a record, see process(Record) */
 	protected abstract void process(String key, String value)
 			throws IOException;
 
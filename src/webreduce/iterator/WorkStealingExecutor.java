@@ -0,0 +1,181 @@
+package webreduce.iterator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Executor used by the ParallelIterators. Every worker has its own deque, tasks are dealt to the
+ * deques round-robin in submission order, and idle workers steal the oldest task of other workers,
+ * so no worker sits idle while work is queued anywhere. Submitters that submit in the order they
+ * want work to be picked up (e.g. the largest files first) thus get that order across all workers.
+ *
+ * At most capacity tasks are queued, further submissions block the submitting thread. Unlike the
+ * CallerRunsPolicy used before, the submitter never runs tasks itself, so it keeps feeding the
+ * workers.
+ *
+ * The workers are started with the first task, so an executor that is never used (e.g. of an
+ * iterator that is created but not run) doesn't keep the JVM alive.
+ */
+public class WorkStealingExecutor extends AbstractExecutorService {
+
+	private static final long IDLE_POLL_MILLIS = 100;
+
+	private final LinkedBlockingDeque<Runnable>[] deques;
+	private final Thread[] workers;
+	// one permit per queued task, a worker holding a permit is guaranteed to find a task
+	private final Semaphore queued = new Semaphore(0);
+	// one permit per free queue slot
+	private final Semaphore slots;
+	private final AtomicInteger nextDeque = new AtomicInteger(0);
+	private final CountDownLatch terminated;
+	private volatile boolean shutdown = false;
+	// written under the lock of this
+	private volatile boolean started = false;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public WorkStealingExecutor(int threads, int capacity) {
+		this.deques = new LinkedBlockingDeque[threads];
+		this.workers = new Thread[threads];
+		this.slots = new Semaphore(capacity);
+		this.terminated = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++)
+			deques[i] = new LinkedBlockingDeque<Runnable>();
+	}
+
+	private synchronized void startWorkers() {
+		if (started)
+			return;
+		if (shutdown)
+			throw new RejectedExecutionException("executor was shut down");
+		started = true;
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker(i);
+			workers[i].start();
+		}
+	}
+
+	private class Worker extends Thread {
+		final int index;
+
+		Worker(int index) {
+			super("iterator-worker-" + index);
+			this.index = index;
+		}
+
+		@Override
+		public void run() {
+			work(index);
+		}
+	}
+
+	/* index of the calling worker thread in its executor, -1 if it is no worker */
+	public static int currentWorker() {
+		Thread t = Thread.currentThread();
+		return t instanceof Worker ? ((Worker) t).index : -1;
+	}
+
+	private void work(int self) {
+		try {
+			while (true) {
+				try {
+					if (!queued.tryAcquire(IDLE_POLL_MILLIS,
+							TimeUnit.MILLISECONDS)) {
+						if (shutdown && queued.availablePermits() == 0)
+							break;
+						continue;
+					}
+				} catch (InterruptedException e) {
+					if (shutdown)
+						break;
+					continue;
+				}
+				Runnable task = take(self);
+				slots.release();
+				try {
+					task.run();
+				} catch (Throwable t) {
+					t.printStackTrace();
+				}
+			}
+		} finally {
+			terminated.countDown();
+		}
+	}
+
+	/* own tasks first, then the oldest task of the other workers */
+	private Runnable take(int self) {
+		while (true) {
+			for (int i = 0; i < deques.length; i++) {
+				Runnable task = deques[(self + i) % deques.length].pollFirst();
+				if (task != null)
+					return task;
+			}
+		}
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		if (shutdown)
+			throw new RejectedExecutionException("executor was shut down");
+		if (!started)
+			startWorkers();
+		slots.acquireUninterruptibly();
+		int d = (nextDeque.getAndIncrement() & Integer.MAX_VALUE)
+				% deques.length;
+		deques[d].addLast(command);
+		queued.release();
+	}
+
+	public int getQueuedTaskCount() {
+		return queued.availablePermits();
+	}
+
+	@Override
+	public synchronized void shutdown() {
+		shutdown = true;
+		// without workers, there is nothing left to wait for
+		if (!started) {
+			while (terminated.getCount() > 0)
+				terminated.countDown();
+		}
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown();
+		List<Runnable> pending = new ArrayList<Runnable>();
+		while (queued.tryAcquire()) {
+			pending.add(take(0));
+			slots.release();
+		}
+		for (Thread worker : workers) {
+			if (worker != null)
+				worker.interrupt();
+		}
+		return pending;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return terminated.getCount() == 0;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+}
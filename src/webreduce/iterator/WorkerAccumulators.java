@@ -0,0 +1,78 @@
+package webreduce.iterator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * The accumulators of an Aggregation, one per worker thread. Workers only ever touch their own
+ * accumulator; reduce() combines all of them in a parallel tree once the iteration is finished.
+ */
+public class WorkerAccumulators<T, A> {
+
+	private final Aggregation<T, A> aggregation;
+	private final Queue<A> accumulators = new ConcurrentLinkedQueue<A>();
+	private final ThreadLocal<A> local = new ThreadLocal<A>() {
+		@Override
+		protected A initialValue() {
+			A acc = aggregation.newAccumulator();
+			accumulators.add(acc);
+			return acc;
+		}
+	};
+
+	public WorkerAccumulators(Aggregation<T, A> aggregation) {
+		this.aggregation = aggregation;
+	}
+
+	/* the accumulator of the calling worker */
+	public A get() {
+		return local.get();
+	}
+
+	public void map(T item) throws IOException {
+		aggregation.map(item, local.get());
+	}
+
+	/* combines the accumulators of all workers, only call this after the workers are done */
+	public A reduce() {
+		List<A> accs = new ArrayList<A>(accumulators);
+		if (accs.isEmpty())
+			return aggregation.newAccumulator();
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			return pool.invoke(new Merge(accs, 0, accs.size()));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private class Merge extends RecursiveTask<A> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<A> accs;
+		private final int from, to;
+
+		Merge(List<A> accs, int from, int to) {
+			this.accs = accs;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected A compute() {
+			if (to - from == 1)
+				return accs.get(from);
+			int mid = (from + to) >>> 1;
+			Merge left = new Merge(accs, from, mid);
+			left.fork();
+			A right = new Merge(accs, mid, to).compute();
+			return aggregation.combine(left.join(), right);
+		}
+	}
+
+}
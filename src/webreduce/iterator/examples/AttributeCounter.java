@@ -2,34 +2,57 @@ package webreduce.iterator.examples;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.HashMap;
+import java.util.Map;
 
+import webreduce.iterator.Aggregation;
 import webreduce.iterator.FileLinesIterator;
+import webreduce.iterator.WorkerAccumulators;
 
 /* counts unique attributes in the corpus from the extracted first lines of all tables as produced 
  * by the class AttributesExtractor */
-public class AttributeCounter extends FileLinesIterator {
+public class AttributeCounter extends FileLinesIterator implements
+		Aggregation<String, Map<String, long[]>> {
 
-	static ConcurrentMap<String, AtomicLong> stats = new ConcurrentHashMap<String, AtomicLong>();
+	// every worker counts into its own map, they are merged at the end
+	private final WorkerAccumulators<String, Map<String, long[]>> stats = new WorkerAccumulators<String, Map<String, long[]>>(
+			this);
 
-	protected void count(String key) {
-		AtomicLong value = stats.get(key);
-		if (value == null) {
-			value = stats.putIfAbsent(key, new AtomicLong(1));
-		}
-		if (value != null) {
-			value.incrementAndGet();
-		}
+	@Override
+	public Map<String, long[]> newAccumulator() {
+		return new HashMap<String, long[]>();
 	}
 
 	@Override
-	protected void process(String line) throws IOException {
+	public void map(String line, Map<String, long[]> acc) {
 		String[] atts = line.split(",");
 		for (String a : atts) {
-			count(a);
+			long[] count = acc.get(a);
+			if (count == null)
+				acc.put(a, new long[] { 1 });
+			else
+				count[0]++;
+		}
+	}
+
+	@Override
+	public Map<String, long[]> combine(Map<String, long[]> left,
+			Map<String, long[]> right) {
+		if (left.size() < right.size())
+			return combine(right, left);
+		for (Map.Entry<String, long[]> e : right.entrySet()) {
+			long[] count = left.get(e.getKey());
+			if (count == null)
+				left.put(e.getKey(), e.getValue());
+			else
+				count[0] += e.getValue()[0];
 		}
+		return left;
+	}
+
+	@Override
+	protected void process(String line) throws IOException {
+		stats.map(line);
 	}
 
 	public static void main(String[] args) throws IOException,
@@ -41,13 +64,14 @@ public class AttributeCounter extends FileLinesIterator {
 		}
 		AttributeCounter cc = new AttributeCounter();
 		cc.iterate(args[0]);
+		Map<String, long[]> result = cc.stats.reduce();
 
 		// transform map to list and sort
 		PrintWriter writer = new PrintWriter(args[1], "UTF-8");
 
 		System.out.println("Finished iteration, printinge...");
-		for (ConcurrentMap.Entry<String, AtomicLong> s : stats.entrySet()) {
-			writer.println(s.getKey() + " " + s.getValue());
+		for (Map.Entry<String, long[]> s : result.entrySet()) {
+			writer.println(s.getKey() + " " + s.getValue()[0]);
 		}
 
 		writer.close();
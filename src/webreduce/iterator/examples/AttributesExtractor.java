@@ -1,27 +1,21 @@
 package webreduce.iterator.examples;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import webreduce.data.Dataset;
-import webreduce.iterator.WebreduceIterator;
+import webreduce.data.DatasetProjection;
+import webreduce.data.DatasetProjection.Field;
+import webreduce.iterator.AggregatingIterator;
 
 /* extracts the "schema" of all tables in the corpus, assuming the "schema" is in the first line */
-public class AttributesExtractor extends WebreduceIterator {
+public class AttributesExtractor extends AggregatingIterator<List<String>> {
 
-	public static List<String> result = Collections
-			.synchronizedList(new ArrayList<String>());
-
-	private static final ThreadLocal<List<String>> localResult = new ThreadLocal<List<String>>() {
-		@Override
-		protected List<String> initialValue() {
-			return new ArrayList<String>();
-		}
-	};
+	public AttributesExtractor() {
+		super(DatasetProjection.of(Field.HEADER_ROW));
+	}
 
 	public static void main(String[] args) throws IOException,
 			InterruptedException {
@@ -31,7 +25,7 @@ public class AttributesExtractor extends WebreduceIterator {
 			System.exit(1);
 		}
 		AttributesExtractor cc = new AttributesExtractor();
-		cc.iterate(args[0]);
+		List<String> result = cc.aggregate(args[0]);
 
 		// transform map to list and sort
 		PrintWriter writer = new PrintWriter(args[1], "UTF-8");
@@ -45,8 +39,12 @@ public class AttributesExtractor extends WebreduceIterator {
 	}
 
 	@Override
-	protected void process(String key, String value) throws IOException {
-		Dataset er = Dataset.fromJson(value);
+	public List<String> newAccumulator() {
+		return new ArrayList<String>();
+	}
+
+	@Override
+	public void map(Dataset er, List<String> acc) throws IOException {
 		String[][] cols = er.getRelation();
 
 		StringBuilder builder = new StringBuilder();
@@ -54,12 +52,12 @@ public class AttributesExtractor extends WebreduceIterator {
 			builder.append(col[0].replaceAll(",", "").toLowerCase())
 					.append(",");
 		}
-		localResult.get().add(builder.toString());
-		
+		acc.add(builder.toString());
 	}
 
 	@Override
-	protected void finishProcessFile(File f) throws IOException {
-		result.addAll(localResult.get());
+	public List<String> combine(List<String> left, List<String> right) {
+		left.addAll(right);
+		return left;
 	}
 }
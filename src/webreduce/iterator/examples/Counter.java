@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.concurrent.atomic.AtomicLong;
 
+import webreduce.iterator.Record;
 import webreduce.iterator.WebreduceIterator;
 
 public class Counter extends WebreduceIterator {
@@ -18,6 +19,12 @@ public class Counter extends WebreduceIterator {
 		}
 	};
 
+	@Override
+	protected void process(Record record) throws IOException {
+		// counting needs no decoding at all
+		localResult.get().incrementAndGet();
+	}
+
 	@Override
 	protected void process(String key, String value) throws IOException {
 		localResult.get().incrementAndGet();
@@ -30,14 +37,26 @@ public class Counter extends WebreduceIterator {
 		result.addAndGet(partialResult);
 	}
 
+	@Override
+	protected String snapshotState() {
+		return Long.toString(result.get());
+	}
+
+	@Override
+	protected void restoreState(String state) {
+		result.set(Long.parseLong(state));
+	}
+
 	public static void main(String[] args) throws IOException,
 			InterruptedException {
-		if (1 != args.length) {
+		if (1 != args.length && 2 != args.length) {
 			System.out
-					.println("Usage: java webreduce.tools.Counter <path-to-corpus>");
+					.println("Usage: java webreduce.tools.Counter <path-to-corpus> [<checkpoint-file>]");
 			System.exit(1);
 		}
 		Counter cc = new Counter();
+		if (args.length == 2)
+			cc.setCheckpoint(new File(args[1]));
 		cc.iterate(args[0]);
 
 		// transform map to list and sort
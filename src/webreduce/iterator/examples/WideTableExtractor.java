@@ -1,36 +1,38 @@
 package webreduce.iterator.examples;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import webreduce.data.Dataset;
-import webreduce.iterator.WebreduceIterator;
+import webreduce.data.DatasetFilter;
+import webreduce.iterator.AggregatingIterator;
 
 /* Another example iterator: this one selects only wide tables (more than
  * 8 attributes) from the corpus and writes a new corpus containing only them. 
  */
-public class WideTableExtractor extends WebreduceIterator {
+public class WideTableExtractor extends AggregatingIterator<List<Dataset>> {
 
-	public List<Dataset> list = Collections
-			.synchronizedList(new ArrayList<Dataset>());
+	public WideTableExtractor() {
+		// narrow tables are dropped on the raw JSON, only wide tables are ever parsed
+		setFilter(DatasetFilter.parse("numCols > 8"));
+	}
 
 	@Override
-	protected void process(String key, String value) throws IOException {
-		Dataset er = Dataset.fromJson(value);
-		String[][] cols = er.getRelation();
-		Integer numCols = cols.length;
+	public List<Dataset> newAccumulator() {
+		return new ArrayList<Dataset>();
+	}
 
-		if (numCols > 8)
-			list.add(er);
+	@Override
+	public void map(Dataset ds, List<Dataset> acc) throws IOException {
+		acc.add(ds);
 	}
 
 	@Override
-	protected void finishProcessFile(File f) throws IOException {
-		// pass
+	public List<Dataset> combine(List<Dataset> left, List<Dataset> right) {
+		left.addAll(right);
+		return left;
 	}
 
 	public static void main(String[] args) throws IOException,
@@ -42,11 +44,9 @@ public class WideTableExtractor extends WebreduceIterator {
 		}
 		WideTableExtractor cc = new WideTableExtractor();
 		String outputPath = args[1];
-		cc.iterate(args[0]);
-		
+		List<Dataset> result = cc.aggregate(args[0]);
 
 		// transform map to list and sort
-		List<Dataset> result = cc.list;
 		PrintWriter writer = new PrintWriter(outputPath, "UTF-8");
 
 		for (Dataset er : result) {
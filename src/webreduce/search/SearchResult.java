@@ -0,0 +1,24 @@
+package webreduce.search;
+
+import webreduce.data.Dataset;
+
+/* one hit of a TableSearcher query */
+public class SearchResult {
+
+	public final int docId; // only valid for the searcher generation it was found with
+	public final float score;
+	public final String tableId;
+	public final String tableType;
+	// the stored table, null if the query was not hydrated or the index has no full results
+	public final Dataset dataset;
+
+	public SearchResult(int docId, float score, String tableId,
+			String tableType, Dataset dataset) {
+		this.docId = docId;
+		this.score = score;
+		this.tableId = tableId;
+		this.tableType = tableType;
+		this.dataset = dataset;
+	}
+
+}
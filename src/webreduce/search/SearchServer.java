@@ -0,0 +1,149 @@
+package webreduce.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.queryparser.classic.ParseException;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Minimal local HTTP endpoint over a TableSearcher, mostly for trying out queries and for
+ * throughput tests with HTTP load generators:
+ *
+ *   GET /search?q=<query>[&k=10][&hydrate=true]
+ *
+ * answers with a JSON object holding the hits (and their tables, if hydrated).
+ */
+public class SearchServer {
+
+	private static final Gson gson = new Gson();
+
+	private final TableSearcher searcher;
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	public SearchServer(TableSearcher searcher, int port, int threads)
+			throws IOException {
+		this.searcher = searcher;
+		this.server = HttpServer.create(new InetSocketAddress("localhost",
+				port), 0);
+		this.executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.createContext("/search", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleSearch(exchange);
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	private void handleSearch(HttpExchange exchange) throws IOException {
+		try {
+			Map<String, String> params = parseQuery(exchange.getRequestURI()
+					.getRawQuery());
+			String q = params.get("q");
+			if (q == null) {
+				respond(exchange, 400, error("missing parameter q"));
+				return;
+			}
+			int k = params.containsKey("k") ? Integer.parseInt(params.get("k"))
+					: 10;
+			if (k <= 0) {
+				respond(exchange, 400, error("invalid parameter k"));
+				return;
+			}
+			boolean hydrate = Boolean.parseBoolean(params.get("hydrate"));
+			long t0 = System.nanoTime();
+			List<SearchResult> results = searcher.search(q, k, hydrate);
+			Map<String, Object> response = new LinkedHashMap<String, Object>();
+			response.put("query", q);
+			response.put("tookMicros", (System.nanoTime() - t0) / 1000);
+			response.put("results", results);
+			respond(exchange, 200, gson.toJson(response));
+		} catch (ParseException e) {
+			respond(exchange, 400, error(e.getMessage()));
+		} catch (NumberFormatException e) {
+			respond(exchange, 400, error("invalid parameter k"));
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			respond(exchange, 500, error(e.toString()));
+		}
+	}
+
+	private static String error(String message) {
+		Map<String, String> error = new HashMap<String, String>();
+		error.put("error", message);
+		return gson.toJson(error);
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery)
+			throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (rawQuery == null)
+			return params;
+		for (String pair : rawQuery.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0)
+				continue;
+			params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+					URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return params;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body)
+			throws IOException {
+		byte[] b = body.getBytes(Charsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type",
+				"application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, b.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(b);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 3) {
+			System.out
+					.println("Usage: java webreduce.search.SearchServer <path-to-index> [<port>] [<threads>]");
+			System.exit(1);
+		}
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime
+				.getRuntime().availableProcessors();
+		TableSearcher searcher = new TableSearcher(new File(args[0]));
+		// pick up changes of an index that is still being written
+		searcher.startRefreshing(10);
+		SearchServer server = new SearchServer(searcher, port, threads);
+		server.start();
+		System.out.println("Listening on http://localhost:" + port
+				+ "/search?q=...");
+	}
+
+}
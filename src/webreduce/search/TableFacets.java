@@ -0,0 +1,401 @@
+package webreduce.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.Bits;
+
+import webreduce.iterator.IndexShards;
+
+/*
+ * Counts over the DocValues fields of an index built by the Indexer with --facets, e.g. tables
+ * per domain, or tables per domain and table type, optionally restricted to the hits of a query.
+ * No stored documents are loaded, so this takes seconds even for the whole corpus.
+ *
+ * Works on numeric, sorted and sorted set DocValues fields (see the facet field names in Indexer).
+ * Numeric values are reported as decimal strings. A document with several values (column types)
+ * is counted once per value. Counts are ordered from the largest to the smallest.
+ */
+public class TableFacets {
+
+	private final IndexReader reader;
+	private final IndexSearcher searcher;
+
+	public TableFacets(IndexReader reader) {
+		this.reader = reader;
+		this.searcher = new IndexSearcher(reader);
+	}
+
+	public IndexReader getReader() {
+		return reader;
+	}
+
+	/* number of documents per value of field */
+	public Map<String, Long> count(String field) throws IOException {
+		return count(field, (Query) null);
+	}
+
+	/* number of hits of query (all documents if null) per value of field */
+	public Map<String, Long> count(String field, Query query)
+			throws IOException {
+		FacetCollector c = new FacetCollector(field, null);
+		searcher.search(query == null ? new MatchAllDocsQuery() : query, c);
+		c.finishSegment();
+		Map<String, Long> result = c.counts.get(null);
+		return sorted(result == null ? new HashMap<String, Long>() : result);
+	}
+
+	/* number of documents per value of field and value of byField */
+	public Map<String, Map<String, Long>> count(String field, String byField)
+			throws IOException {
+		return count(field, byField, null);
+	}
+
+	/* number of hits of query (all documents if null) per value of field and value of byField */
+	public Map<String, Map<String, Long>> count(String field, String byField,
+			Query query) throws IOException {
+		FacetCollector c = new FacetCollector(byField, field);
+		searcher.search(query == null ? new MatchAllDocsQuery() : query, c);
+		c.finishSegment();
+		// order the outer values by their total count
+		final Map<String, Long> totals = new HashMap<String, Long>();
+		for (Map.Entry<String, Map<String, Long>> e : c.counts.entrySet()) {
+			long total = 0;
+			for (long n : e.getValue().values())
+				total += n;
+			totals.put(e.getKey(), total);
+		}
+		List<String> keys = new ArrayList<String>(c.counts.keySet());
+		Collections.sort(keys, new Comparator<String>() {
+			@Override
+			public int compare(String o1, String o2) {
+				return Long.compare(totals.get(o2), totals.get(o1));
+			}
+		});
+		Map<String, Map<String, Long>> result = new LinkedHashMap<String, Map<String, Long>>();
+		for (String key : keys)
+			result.put(key, sorted(c.counts.get(key)));
+		return result;
+	}
+
+	private static Map<String, Long> sorted(Map<String, Long> counts) {
+		List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(
+				counts.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+			@Override
+			public int compare(Map.Entry<String, Long> o1,
+					Map.Entry<String, Long> o2) {
+				return Long.compare(o2.getValue(), o1.getValue());
+			}
+		});
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Long> e : entries)
+			result.put(e.getKey(), e.getValue());
+		return result;
+	}
+
+	/* the values of a DocValues field of one segment, as ordinals that can be turned into labels */
+	private static abstract class FieldOrds {
+		long[] ords = new long[4];
+
+		/* fills ords with the ordinals of doc's values, returns how many there are */
+		abstract int read(int doc);
+
+		abstract String label(long ord);
+
+		/* the number of distinct ordinals of the segment, -1 if they are not dense (numbers) */
+		abstract long valueCount();
+
+		static FieldOrds open(AtomicReader reader, String field)
+				throws IOException {
+			FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+			if (info == null || !info.hasDocValues())
+				return null;
+			switch (info.getDocValuesType()) {
+			case NUMERIC:
+				return new NumericOrds(reader.getNumericDocValues(field),
+						reader.getDocsWithField(field));
+			case SORTED:
+				return new SortedOrds(reader.getSortedDocValues(field));
+			case SORTED_SET:
+				return new SortedSetOrds(reader.getSortedSetDocValues(field));
+			default:
+				throw new IllegalArgumentException(field
+						+ " has unsupported DocValues type "
+						+ info.getDocValuesType());
+			}
+		}
+	}
+
+	private static class NumericOrds extends FieldOrds {
+		private final NumericDocValues values;
+		private final Bits docsWithField;
+
+		NumericOrds(NumericDocValues values, Bits docsWithField) {
+			this.values = values;
+			this.docsWithField = docsWithField;
+		}
+
+		@Override
+		int read(int doc) {
+			if (!docsWithField.get(doc))
+				return 0;
+			ords[0] = values.get(doc);
+			return 1;
+		}
+
+		@Override
+		String label(long ord) {
+			return Long.toString(ord);
+		}
+
+		@Override
+		long valueCount() {
+			return -1;
+		}
+	}
+
+	private static class SortedOrds extends FieldOrds {
+		private final SortedDocValues values;
+
+		SortedOrds(SortedDocValues values) {
+			this.values = values;
+		}
+
+		@Override
+		int read(int doc) {
+			int ord = values.getOrd(doc);
+			if (ord < 0)
+				return 0;
+			ords[0] = ord;
+			return 1;
+		}
+
+		@Override
+		String label(long ord) {
+			return values.lookupOrd((int) ord).utf8ToString();
+		}
+
+		@Override
+		long valueCount() {
+			return values.getValueCount();
+		}
+	}
+
+	private static class SortedSetOrds extends FieldOrds {
+		private final SortedSetDocValues values;
+
+		SortedSetOrds(SortedSetDocValues values) {
+			this.values = values;
+		}
+
+		@Override
+		int read(int doc) {
+			values.setDocument(doc);
+			int n = 0;
+			long ord;
+			while ((ord = values.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+				if (n == ords.length)
+					ords = Arrays.copyOf(ords, n * 2);
+				ords[n++] = ord;
+			}
+			return n;
+		}
+
+		@Override
+		String label(long ord) {
+			return values.lookupOrd(ord).utf8ToString();
+		}
+
+		@Override
+		long valueCount() {
+			return values.getValueCount();
+		}
+	}
+
+	/*
+	 * Counts per segment by ordinal, the labels are only looked up (and the counts merged) once
+	 * per segment and distinct value. Without an outer field, all counts are under the key null.
+	 *
+	 * If the ordinals of the segment are dense (sorted and sorted set fields), they are counted in
+	 * an array indexed by outer ordinal * inner value count + inner ordinal, so that collect()
+	 * neither allocates nor hashes. Numbers, and combinations of too many values for an array, are
+	 * counted in maps by ordinal.
+	 */
+	private static class FacetCollector extends Collector {
+		// 32 MB of counts per segment at most
+		private static final long MAX_DENSE_COUNTS = 1 << 22;
+
+		private final String field;
+		private final String outerField;
+		private FieldOrds ords = null;
+		private FieldOrds outerOrds = null;
+		private long[] denseCounts = null;
+		private int innerValueCount;
+		private Map<Long, Map<Long, long[]>> segmentCounts = new HashMap<Long, Map<Long, long[]>>();
+		final Map<String, Map<String, Long>> counts = new HashMap<String, Map<String, Long>>();
+
+		FacetCollector(String field, String outerField) {
+			this.field = field;
+			this.outerField = outerField;
+		}
+
+		@Override
+		public void setScorer(Scorer scorer) {
+		}
+
+		@Override
+		public void setNextReader(AtomicReaderContext context)
+				throws IOException {
+			finishSegment();
+			ords = FieldOrds.open(context.reader(), field);
+			outerOrds = outerField == null ? null : FieldOrds.open(
+					context.reader(), outerField);
+			if (ords == null || (outerField != null && outerOrds == null))
+				return;
+			long inner = ords.valueCount();
+			long outer = outerOrds == null ? 1 : outerOrds.valueCount();
+			if (inner >= 0 && outer >= 0 && inner * outer <= MAX_DENSE_COUNTS) {
+				innerValueCount = (int) inner;
+				denseCounts = new long[(int) (inner * outer)];
+			}
+		}
+
+		@Override
+		public void collect(int doc) {
+			if (ords == null || (outerField != null && outerOrds == null))
+				return;
+			int n = ords.read(doc);
+			if (n == 0)
+				return;
+			if (denseCounts != null) {
+				long[] inner = ords.ords;
+				if (outerOrds == null) {
+					for (int i = 0; i < n; i++)
+						denseCounts[(int) inner[i]]++;
+				} else {
+					int m = outerOrds.read(doc);
+					for (int j = 0; j < m; j++) {
+						int base = (int) outerOrds.ords[j] * innerValueCount;
+						for (int i = 0; i < n; i++)
+							denseCounts[base + (int) inner[i]]++;
+					}
+				}
+			} else if (outerOrds == null) {
+				count(-1L, n);
+			} else {
+				int m = outerOrds.read(doc);
+				for (int j = 0; j < m; j++)
+					count(outerOrds.ords[j], n);
+			}
+		}
+
+		private void count(Long outer, int n) {
+			Map<Long, long[]> inner = segmentCounts.get(outer);
+			if (inner == null) {
+				inner = new HashMap<Long, long[]>();
+				segmentCounts.put(outer, inner);
+			}
+			for (int i = 0; i < n; i++) {
+				long[] c = inner.get(ords.ords[i]);
+				if (c == null) {
+					c = new long[1];
+					inner.put(ords.ords[i], c);
+				}
+				c[0]++;
+			}
+		}
+
+		void finishSegment() {
+			if (denseCounts != null) {
+				for (int base = 0; base < denseCounts.length; base += innerValueCount) {
+					Map<String, Long> merged = null;
+					for (int i = 0; i < innerValueCount; i++) {
+						long c = denseCounts[base + i];
+						if (c == 0)
+							continue;
+						if (merged == null)
+							merged = merged(outerOrds == null ? null : outerOrds
+									.label(base / innerValueCount));
+						merge(merged, ords.label(i), c);
+					}
+				}
+				denseCounts = null;
+			}
+			for (Map.Entry<Long, Map<Long, long[]>> o : segmentCounts
+					.entrySet()) {
+				Map<String, Long> merged = merged(outerOrds == null ? null
+						: outerOrds.label(o.getKey()));
+				for (Map.Entry<Long, long[]> e : o.getValue().entrySet())
+					merge(merged, ords.label(e.getKey()), e.getValue()[0]);
+			}
+			segmentCounts = new HashMap<Long, Map<Long, long[]>>();
+		}
+
+		/* the counts of all segments under the given outer label */
+		private Map<String, Long> merged(String outerLabel) {
+			Map<String, Long> merged = counts.get(outerLabel);
+			if (merged == null) {
+				merged = new HashMap<String, Long>();
+				counts.put(outerLabel, merged);
+			}
+			return merged;
+		}
+
+		private static void merge(Map<String, Long> merged, String label,
+				long count) {
+			Long before = merged.get(label);
+			merged.put(label, (before == null ? 0 : before) + count);
+		}
+
+		@Override
+		public boolean acceptsDocsOutOfOrder() {
+			return true;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2 && args.length != 3) {
+			System.out
+					.println("Usage: java webreduce.search.TableFacets <path-to-index> <field> [<by-field>]");
+			System.exit(1);
+		}
+		IndexReader reader = IndexShards.open(new File(args[0]));
+		TableFacets facets = new TableFacets(reader);
+		long t0 = System.currentTimeMillis();
+		if (args.length == 2) {
+			for (Map.Entry<String, Long> e : facets.count(args[1]).entrySet())
+				System.out.println(e.getKey() + "\t" + e.getValue());
+		} else {
+			for (Map.Entry<String, Map<String, Long>> o : facets.count(
+					args[1], args[2]).entrySet()) {
+				for (Map.Entry<String, Long> e : o.getValue().entrySet())
+					System.out.println(o.getKey() + "\t" + e.getKey() + "\t"
+							+ e.getValue());
+			}
+		}
+		System.err.println("Took " + (System.currentTimeMillis() - t0) + " ms");
+		reader.close();
+	}
+
+}
@@ -0,0 +1,264 @@
+package webreduce.search;
+
+import static org.fusesource.leveldbjni.JniDBFactory.bytes;
+import static org.fusesource.leveldbjni.JniDBFactory.factory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.Options;
+
+import webreduce.cleaning.CustomAnalyzer;
+import webreduce.data.Dataset;
+import webreduce.data.DatasetCodec;
+import webreduce.iterator.IndexShards;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.primitives.Longs;
+
+/*
+ * Searches the tables in an index built by the Indexer (sharded or not). Queries use the Lucene
+ * query syntax over the fields attributes, entities, keys, title, terms and url, so both keyword
+ * queries ("population city") and fielded ones ("attributes:population") work. Hits are
+ * optionally hydrated to Datasets, from the full_result field or from the leveldb next to the
+ * index.
+ *
+ * Thread-safe. SearcherManagers keep the searchers fresh while the index changes (see refresh()
+ * and startRefreshing()), bounded LRU caches hold the results of repeated queries and hydrated
+ * tables, both are cleared when a refresh sees changes. Cache keys include the versions of the
+ * searched readers, so a search still running on the searchers from before a refresh cannot
+ * serve its results to later searches. Cached Datasets are shared between callers and must not
+ * be modified.
+ */
+public class TableSearcher implements Closeable {
+
+	public static final String[] SEARCH_FIELDS = { "attributes", "entities",
+			"keys", "title", "terms", "url" };
+
+	private static final String TABLE_ID = "table_id";
+	private static final String TABLE_TYPE = "tableType";
+	private static final String FULL_RESULT = "full_result";
+	private static final String DOCUMENT_ID = "document_id";
+	private static final Set<String> HIT_FIELDS = new HashSet<String>(
+			Arrays.asList(TABLE_ID, TABLE_TYPE));
+	private static final Set<String> HYDRATE_FIELDS = new HashSet<String>(
+			Arrays.asList(TABLE_ID, TABLE_TYPE, FULL_RESULT, DOCUMENT_ID));
+
+	private final Analyzer analyzer = new CustomAnalyzer();
+	// one per shard, or a single one
+	private final List<SearcherManager> managers = new ArrayList<SearcherManager>();
+	private final DB leveldb;
+	private final Cache<String, List<SearchResult>> queryCache;
+	private final Cache<String, Dataset> datasetCache;
+	private ScheduledExecutorService refresher = null;
+
+	public TableSearcher(File indexDir) throws IOException {
+		this(indexDir, 1000, 10000);
+	}
+
+	public TableSearcher(File indexDir, int queryCacheSize, int datasetCacheSize)
+			throws IOException {
+		this.queryCache = CacheBuilder.newBuilder().maximumSize(queryCacheSize)
+				.build();
+		this.datasetCache = CacheBuilder.newBuilder()
+				.maximumSize(datasetCacheSize).build();
+
+		List<File> shards = IndexShards.readManifest(indexDir);
+		if (shards == null)
+			shards = Arrays.asList(indexDir);
+		ReferenceManager.RefreshListener invalidate = new ReferenceManager.RefreshListener() {
+			@Override
+			public void beforeRefresh() {
+			}
+
+			@Override
+			public void afterRefresh(boolean didRefresh) {
+				if (didRefresh) {
+					queryCache.invalidateAll();
+					datasetCache.invalidateAll();
+				}
+			}
+		};
+		for (File shard : shards) {
+			SearcherManager manager = new SearcherManager(new MMapDirectory(
+					shard), null);
+			manager.addListener(invalidate);
+			managers.add(manager);
+		}
+
+		DB db = null;
+		File leveldbDir = new File(indexDir, "leveldb");
+		if (leveldbDir.exists()) {
+			try {
+				db = factory.open(leveldbDir, new Options().createIfMissing(false));
+			} catch (IOException e) {
+				// e.g. locked by a running Indexer
+				System.err.println("Could not open " + leveldbDir
+						+ ", hydrating from the index only: " + e.getMessage());
+			}
+		}
+		this.leveldb = db;
+	}
+
+	/* the top k hits of the query, with their tables if hydrate is true */
+	public List<SearchResult> search(String query, int k, boolean hydrate)
+			throws IOException, ParseException {
+		if (k <= 0)
+			throw new IllegalArgumentException("k must be positive: " + k);
+		IndexSearcher[] searchers = new IndexSearcher[managers.size()];
+		MultiReader multiReader = null;
+		List<SearchResult> results;
+		try {
+			StringBuilder versions = new StringBuilder();
+			for (int i = 0; i < searchers.length; i++) {
+				searchers[i] = managers.get(i).acquire();
+				// SearcherManager always searches a DirectoryReader
+				versions.append(((DirectoryReader) searchers[i].getIndexReader())
+						.getVersion()).append(',');
+			}
+			String generation = versions.toString();
+			String cacheKey = generation + "\t" + k + "\t" + hydrate + "\t"
+					+ query;
+			results = queryCache.getIfPresent(cacheKey);
+			if (results != null)
+				return results;
+
+			// the parser is cheap to create but not thread-safe
+			Query q = new MultiFieldQueryParser(SEARCH_FIELDS, analyzer)
+					.parse(query);
+			IndexSearcher searcher = searchers[0];
+			if (searchers.length > 1) {
+				IndexReader[] readers = new IndexReader[searchers.length];
+				for (int i = 0; i < readers.length; i++)
+					readers[i] = searchers[i].getIndexReader();
+				multiReader = new MultiReader(readers, false);
+				searcher = new IndexSearcher(multiReader);
+			}
+			TopDocs top = searcher.search(q, k);
+			results = new ArrayList<SearchResult>(top.scoreDocs.length);
+			for (ScoreDoc hit : top.scoreDocs) {
+				Document doc = searcher.doc(hit.doc, hydrate ? HYDRATE_FIELDS
+						: HIT_FIELDS);
+				results.add(new SearchResult(hit.doc, hit.score, doc
+						.get(TABLE_ID), doc.get(TABLE_TYPE), hydrate ? hydrate(doc,
+						generation) : null));
+			}
+			queryCache.put(cacheKey, results);
+		} finally {
+			if (multiReader != null)
+				multiReader.close();
+			for (int i = 0; i < searchers.length; i++) {
+				if (searchers[i] != null)
+					managers.get(i).release(searchers[i]);
+			}
+		}
+		return results;
+	}
+
+	/* the table of a hit, cached per table id and generation of the searched readers */
+	private Dataset hydrate(Document doc, String generation) {
+		String tableId = doc.get(TABLE_ID);
+		String cacheKey = generation + "\t" + tableId;
+		if (tableId != null) {
+			Dataset cached = datasetCache.getIfPresent(cacheKey);
+			if (cached != null)
+				return cached;
+		}
+		Dataset ds = null;
+		IndexableField fullResult = doc.getField(FULL_RESULT);
+		if (fullResult != null) {
+			BytesRef b = fullResult.binaryValue();
+			if (b != null)
+				ds = DatasetCodec.decodeStored(Arrays.copyOfRange(b.bytes,
+						b.offset, b.offset + b.length));
+			else
+				ds = Dataset.fromJson(fullResult.stringValue());
+		} else if (leveldb != null) {
+			// counter keys, or table ids for indexes built incrementally
+			IndexableField documentId = doc.getField(DOCUMENT_ID);
+			byte[] key = null;
+			if (documentId != null)
+				key = Longs.toByteArray(documentId.numericValue().longValue());
+			else if (tableId != null)
+				key = bytes(tableId);
+			byte[] value = key == null ? null : leveldb.get(key);
+			if (value != null)
+				ds = DatasetCodec.decodeStored(value);
+		}
+		if (ds != null && tableId != null)
+			datasetCache.put(cacheKey, ds);
+		return ds;
+	}
+
+	/* makes changes to the index visible to searches started afterwards */
+	public void refresh() throws IOException {
+		for (SearcherManager manager : managers)
+			manager.maybeRefreshBlocking();
+	}
+
+	/* refreshes in the background every periodSeconds */
+	public synchronized void startRefreshing(long periodSeconds) {
+		if (refresher != null)
+			return;
+		refresher = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "searcher-refresh");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+		for (SearcherManager manager : managers)
+			manager.close();
+		if (leveldb != null)
+			leveldb.close();
+	}
+
+}
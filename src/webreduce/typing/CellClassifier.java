@@ -0,0 +1,259 @@
+package webreduce.typing;
+
+/*
+ * Hand-written replacement for the regular expressions of Types.typeOfRegex, which returns the
+ * same numeric type for every string without allocating. Each pattern is a scanner that finds the
+ * same match as Matcher.find() would (the leftmost one, with the regex engine's greedy choices and
+ * backtracking order), so that the typed share of the cell is exactly the same.
+ *
+ * Every pattern needs a digit or a comma, so the common text cell is classified by a single scan
+ * that finds neither. Scanners also stop at the first start position from which no match could
+ * be long enough, as the first match decides.
+ *
+ * Before that, cells are checked for e-mail addresses, URLs and dates by TextRecognizer, which
+ * typeOfRegex does not know. They come first because a date like "May 2014" is mostly a number.
+ */
+final class CellClassifier {
+
+	private static final char POUND = '\u00a3';
+	private static final char LIRA = '\u20a4';
+	private static final char EURO = '\u20ac';
+	// [\d,]{1,9} of the integer pattern
+	private static final int MAX_INT_DIGITS = 9;
+
+	private CellClassifier() {
+	}
+
+	static DataType typeOf(String s) {
+		int n = s.length();
+		if (n == 0)
+			return DataType.NONE;
+		boolean hasDigit = false;
+		boolean hasComma = false;
+		boolean hasAt = false;
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9')
+				hasDigit = true;
+			else if (c == ',')
+				hasComma = true;
+			else if (c == '@')
+				hasAt = true;
+		}
+		DataType text = TextRecognizer.typeOf(s, hasDigit, hasAt);
+		if (text != DataType.STRING)
+			return text;
+		if (hasDigit || hasComma) {
+			double size = n;
+			if (isTyped(currency(s, n, size), size))
+				return DataType.CURRENCY;
+			if (isTyped(decimal(s, n, size), size))
+				return DataType.DOUBLE;
+			if (isTyped(integer(s, n, size), size))
+				return DataType.INTEGER;
+			if (isTyped(number(s, n, size), size))
+				return DataType.LONG;
+		}
+		return DataType.STRING;
+	}
+
+	private static boolean isTyped(int matchLength, double size) {
+		return matchLength / size > Types.NUMERIC_PERCENTAGE;
+	}
+
+	/* true if no match starting at i can be long enough, so that the search can stop */
+	private static boolean tooLate(int i, int n, double size) {
+		return (n - i) / size <= Types.NUMERIC_PERCENTAGE;
+	}
+
+	/*
+	 * the currency pattern, returns the length of the first match, 0
+	 * if there is none (or it is too short anyway)
+	 */
+	private static int currency(String s, int n, double size) {
+		int i = 0;
+		while (i < n) {
+			if (tooLate(i, n, size))
+				return 0;
+			char c = s.charAt(i);
+			if (isDigitOrComma(c)) {
+				// second alternative, every start inside the run of digits ends the same way
+				int q = run(s, i, n);
+				int p = skipSpace(s, fraction(s, q, n), n);
+				if (p < n && s.charAt(p) == EURO)
+					return p + 1 - i;
+				i = q;
+			} else if (c == '-' || isSpace(c) || isPrefixSymbol(c)) {
+				// first alternative, starts inside the leading "-" and spaces end the same way
+				int p = skipSpace(s, c == '-' ? i + 1 : i, n);
+				if (p < n && isPrefixSymbol(s.charAt(p))) {
+					int q = skipSpace(s, p + 1, n);
+					int r = run(s, q, n);
+					if (r > q)
+						return fraction(s, r, n) - i;
+				}
+				i = p > i ? p : i + 1;
+			} else {
+				i++;
+			}
+		}
+		return 0;
+	}
+
+	/* -?[\d,]+\.\d+(\s)?(%)? */
+	private static int decimal(String s, int n, double size) {
+		int i = 0;
+		while (i < n) {
+			if (tooLate(i, n, size))
+				return 0;
+			int p = s.charAt(i) == '-' ? i + 1 : i;
+			if (p < n && isDigitOrComma(s.charAt(p))) {
+				int q = run(s, p, n);
+				if (q + 1 < n && s.charAt(q) == '.' && isDigit(s.charAt(q + 1))) {
+					int r = q + 2;
+					while (r < n && isDigit(s.charAt(r)))
+						r++;
+					if (r < n && isSpace(s.charAt(r)))
+						r++;
+					if (r < n && s.charAt(r) == '%')
+						r++;
+					return r - i;
+				}
+				i = q;
+			} else {
+				i++;
+			}
+		}
+		return 0;
+	}
+
+	/* (^|[^\d])-?[\d,]{1,9}(\s)?(%)?($|[^\d]), tried in the order of the regex engine */
+	private static int integer(String s, int n, double size) {
+		for (int i = 0; i < n; i++) {
+			if (tooLate(i, n, size))
+				return 0;
+			int end = -1;
+			if (i == 0)
+				end = integerAfterPrefix(s, 0, n);
+			if (end < 0 && !isDigit(s.charAt(i)))
+				end = integerAfterPrefix(s, i + 1, n);
+			if (end >= 0)
+				return end - i;
+		}
+		return 0;
+	}
+
+	/* the end of a match of the integer pattern after (^|[^\d]) ended at p, -1 if there is none */
+	private static int integerAfterPrefix(String s, int p, int n) {
+		if (p < n && s.charAt(p) == '-') {
+			int end = integerDigits(s, p + 1, n);
+			if (end >= 0)
+				return end;
+		}
+		return integerDigits(s, p, n);
+	}
+
+	private static int integerDigits(String s, int p, int n) {
+		int k = 0;
+		while (k < MAX_INT_DIGITS && p + k < n && isDigitOrComma(s.charAt(p + k)))
+			k++;
+		for (; k >= 1; k--) {
+			int q = p + k;
+			if (q < n && isSpace(s.charAt(q))) {
+				int end = integerSuffix(s, q + 1, n);
+				if (end >= 0)
+					return end;
+			}
+			int end = integerSuffix(s, q, n);
+			if (end >= 0)
+				return end;
+		}
+		return -1;
+	}
+
+	/* (%)?($|[^\d]) at p */
+	private static int integerSuffix(String s, int p, int n) {
+		if (p < n && s.charAt(p) == '%') {
+			int end = integerEnd(s, p + 1, n);
+			if (end >= 0)
+				return end;
+		}
+		return integerEnd(s, p, n);
+	}
+
+	private static int integerEnd(String s, int p, int n) {
+		if (isDollar(s, p, n))
+			return p;
+		if (p < n && !isDigit(s.charAt(p)))
+			return p + 1;
+		return -1;
+	}
+
+	/* -?[\d,]+ */
+	private static int number(String s, int n, double size) {
+		for (int i = 0; i < n; i++) {
+			if (tooLate(i, n, size))
+				return 0;
+			int p = s.charAt(i) == '-' ? i + 1 : i;
+			if (p < n && isDigitOrComma(s.charAt(p)))
+				return run(s, p, n) - i;
+		}
+		return 0;
+	}
+
+	/* the end of the run of [\d,] starting at p */
+	private static int run(String s, int p, int n) {
+		while (p < n && isDigitOrComma(s.charAt(p)))
+			p++;
+		return p;
+	}
+
+	/* the end of (\.\d+)? at p */
+	private static int fraction(String s, int p, int n) {
+		if (p + 1 < n && s.charAt(p) == '.' && isDigit(s.charAt(p + 1))) {
+			p += 2;
+			while (p < n && isDigit(s.charAt(p)))
+				p++;
+		}
+		return p;
+	}
+
+	private static int skipSpace(String s, int p, int n) {
+		while (p < n && isSpace(s.charAt(p)))
+			p++;
+		return p;
+	}
+
+	/* $ without MULTILINE: the end of the input, or before a line terminator that ends it */
+	private static boolean isDollar(String s, int p, int n) {
+		if (p == n)
+			return true;
+		if (p == n - 2)
+			return s.charAt(p) == '\r' && s.charAt(p + 1) == '\n';
+		if (p != n - 1)
+			return false;
+		char c = s.charAt(p);
+		if (c == '\n')
+			return p == 0 || s.charAt(p - 1) != '\r';
+		return c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isDigitOrComma(char c) {
+		return (c >= '0' && c <= '9') || c == ',';
+	}
+
+	/* \s */
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000b'
+				|| c == '\f' || c == '\r';
+	}
+
+	private static boolean isPrefixSymbol(char c) {
+		return c == '$' || c == POUND || c == LIRA;
+	}
+
+}
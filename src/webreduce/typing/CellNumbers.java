@@ -0,0 +1,130 @@
+package webreduce.typing;
+
+/*
+ * The numeric value of a cell typed as a number: its first number, with an optional minus sign
+ * (also before a currency symbol), digits with commas as thousands separators (as in the typing
+ * patterns) and an optional fraction. Everything around it, like units, percent and currency
+ * signs, is ignored. Parsing does not allocate, except for doubles of more than 15 digits.
+ */
+public final class CellNumbers {
+
+	// more digits do not fit a long, or a double mantissa exactly
+	private static final int MAX_LONG_DIGITS = 18;
+	private static final int MAX_EXACT_DIGITS = 15;
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+
+	/*
+	 * returned by parseLong for cells without a long value, never a parsed value: at most 18 digits
+	 * are parsed, longer numbers (including -9223372036854775808 itself) have no long value
+	 */
+	public static final long NO_LONG = Long.MIN_VALUE;
+
+	private CellNumbers() {
+	}
+
+	/* the first number of the cell as a long, NO_LONG if there is none or it has a fraction */
+	public static long parseLong(String s) {
+		if (s == null)
+			return NO_LONG;
+		int n = s.length();
+		int first = start(s, n);
+		if (first < 0)
+			return NO_LONG;
+		long v = 0;
+		int p = first;
+		int digits = 0;
+		for (; p < n; p++) {
+			char c = s.charAt(p);
+			if (c >= '0' && c <= '9') {
+				if (++digits > MAX_LONG_DIGITS)
+					return NO_LONG;
+				v = v * 10 + (c - '0');
+			} else if (c != ',') {
+				break;
+			}
+		}
+		if (p + 1 < n && s.charAt(p) == '.' && isDigit(s.charAt(p + 1)))
+			return NO_LONG;
+		return isNegative(s, first) ? -v : v;
+	}
+
+	/* the first number of the cell as a double, NaN if there is none */
+	public static double parseDouble(String s) {
+		if (s == null)
+			return Double.NaN;
+		int n = s.length();
+		int first = start(s, n);
+		if (first < 0)
+			return Double.NaN;
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean fraction = false;
+		int p = first;
+		for (; p < n; p++) {
+			char c = s.charAt(p);
+			if (c >= '0' && c <= '9') {
+				// leading zeros don't count
+				if (digits > 0 || c != '0')
+					digits++;
+				if (digits <= MAX_EXACT_DIGITS)
+					mantissa = mantissa * 10 + (c - '0');
+				if (fraction)
+					scale++;
+			} else if (c == ',' && !fraction) {
+				continue;
+			} else if (c == '.' && !fraction && p + 1 < n
+					&& isDigit(s.charAt(p + 1))) {
+				fraction = true;
+			} else {
+				break;
+			}
+		}
+		double v;
+		if (digits <= MAX_EXACT_DIGITS && scale < POWERS_OF_TEN.length) {
+			// exact operands, so the one division rounds correctly
+			v = mantissa / POWERS_OF_TEN[scale];
+		} else {
+			StringBuilder sb = new StringBuilder(p - first);
+			for (int i = first; i < p; i++) {
+				if (s.charAt(i) != ',')
+					sb.append(s.charAt(i));
+			}
+			v = Double.parseDouble(sb.toString());
+		}
+		return isNegative(s, first) ? -v : v;
+	}
+
+	/* the position of the first digit of the cell, -1 if there is none */
+	private static int start(String s, int n) {
+		for (int p = 0; p < n; p++) {
+			if (isDigit(s.charAt(p)))
+				return p;
+		}
+		return -1;
+	}
+
+	/* true if the number starting at p has a minus sign, before spaces and a currency symbol */
+	private static boolean isNegative(String s, int p) {
+		int i = p - 1;
+		while (i >= 0
+				&& (Character.isWhitespace(s.charAt(i)) || isCurrencySymbol(s
+						.charAt(i))))
+			i--;
+		return i >= 0 && s.charAt(i) == '-';
+	}
+
+	private static boolean isCurrencySymbol(char c) {
+		return Character.getType(c) == Character.CURRENCY_SYMBOL;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+}
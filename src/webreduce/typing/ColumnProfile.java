@@ -0,0 +1,42 @@
+package webreduce.typing;
+
+import java.io.Serializable;
+
+/*
+ * Statistics of a column, computed by ColumnProfiler in the pass that types it. Cells are those
+ * below the header; blank cells are null, empty or whitespace only.
+ */
+public class ColumnProfile implements Serializable {
+
+	private static final long serialVersionUID = 4120378164627049514L;
+
+	public String type; // the column type, as in Dataset.columnTypes
+	public int numCells;
+	public double nullFraction; // share of blank cells, 0 for a column without cells
+	public double avgLength; // average length of the cells that are not blank
+	public long distinct; // approximate number of distinct cells that are not blank
+	// of the cells typed as numbers, if the column is numeric (null otherwise)
+	public Double min;
+	public Double max;
+	public Double mean;
+
+	public ColumnProfile() {
+	}
+
+	public boolean isNumeric() {
+		return min != null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(type).append(", ")
+				.append(numCells).append(" cells, ").append(nullFraction)
+				.append(" null, ").append(distinct).append(" distinct, ")
+				.append(avgLength).append(" chars");
+		if (isNumeric())
+			sb.append(", ").append(min).append(" to ").append(max)
+					.append(", mean ").append(mean);
+		return sb.toString();
+	}
+
+}
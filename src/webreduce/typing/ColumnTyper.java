@@ -0,0 +1,227 @@
+package webreduce.typing;
+
+import java.util.Arrays;
+
+/*
+ * Streaming version of Types.columnType: cells are classified one by one into a count per
+ * DataType, and the column type is decided from the counts with the same rules. For tall columns,
+ * columnType() visits the cells in a fixed pseudo-random order and stops as soon as the decision
+ * is statistically settled at the configured confidence level, so that a column of 50,000 rows
+ * costs about as much as one of a few hundred. Columns of up to MIN_SAMPLE cells are always
+ * typed exactly like Types.columnType.
+ *
+ * The decision is settled when (at the given confidence) the most frequent type leads the second
+ * by more than TYPE_MAJORITY_THRESHOLD, or the numeric share is above NUMERIC_SHARE_THRESHOLD
+ * while the lead is not and DOUBLE, the least specific numeric type, was seen, or both are below
+ * their thresholds and at least two types were seen. The rules that depend on single cells (the
+ * type of a column of one type, the least specific numeric type) are never decided by sampling.
+ * Confidence bounds use the normal approximation with the finite population correction.
+ *
+ * Instances are not thread safe, but can be reused for any number of columns.
+ */
+public class ColumnTyper {
+
+	public static final double DEFAULT_CONFIDENCE = 0.99;
+	// columns up to this size are typed exactly, and no decision is taken on fewer cells
+	public static final int MIN_SAMPLE = 256;
+	// the counts are checked for a settled decision every that many cells
+	private static final int CHECK_INTERVAL = 64;
+
+	private static final DataType[] TYPES = DataType.values();
+	private static final double DEFAULT_Z = zScore(DEFAULT_CONFIDENCE);
+
+	private final double z;
+	private final int[] counts = new int[TYPES.length];
+	private int total = 0;
+
+	public ColumnTyper() {
+		this.z = DEFAULT_Z;
+	}
+
+	/* confidence level of the early decision, 1 or more types every column exactly */
+	public ColumnTyper(double confidence) {
+		if (confidence <= 0)
+			throw new IllegalArgumentException("confidence must be positive: "
+					+ confidence);
+		this.z = confidence >= 1 ? Double.POSITIVE_INFINITY
+				: zScore(confidence);
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		total = 0;
+	}
+
+	public void add(String cell) {
+		add(Types.typeOf(cell));
+	}
+
+	public void add(DataType type) {
+		counts[type.ordinal()]++;
+		total++;
+	}
+
+	public int getCount(DataType type) {
+		return counts[type.ordinal()];
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	/* the type of the cells added so far, by the rules of Types.columnType */
+	public DataType result() {
+		DataType most = null;
+		DataType second = null;
+		int numTypes = 0;
+		int numeric = 0;
+		for (DataType t : TYPES) {
+			int c = counts[t.ordinal()];
+			if (t == DataType.NONE || c == 0)
+				continue;
+			numTypes++;
+			if (t.Specificity >= DataType.DOUBLE.Specificity)
+				numeric += c;
+			if (most == null || c > counts[most.ordinal()]) {
+				second = most;
+				most = t;
+			} else if (second == null || c > counts[second.ordinal()]) {
+				second = t;
+			}
+		}
+		if (numTypes == 0)
+			return DataType.NONE;
+		if (numTypes == 1)
+			return most;
+		// computed in float like Types.columnType always did
+		float mostPercentage = counts[most.ordinal()] / (float) total;
+		float secondPercentage = counts[second.ordinal()] / (float) total;
+		if (mostPercentage - secondPercentage > Types.TYPE_MAJORITY_THRESHOLD)
+			return most;
+		if (numeric / (float) total > Types.NUMERIC_SHARE_THRESHOLD)
+			return leastSpecificNumeric();
+		return DataType.STRING;
+	}
+
+	private DataType leastSpecificNumeric() {
+		DataType result = null;
+		for (DataType t : TYPES) {
+			if (counts[t.ordinal()] > 0
+					&& t.Specificity >= DataType.DOUBLE.Specificity
+					&& (result == null || t.Specificity < result.Specificity))
+				result = t;
+		}
+		return result;
+	}
+
+	/*
+	 * true if result() is the type of the whole column at the configured confidence, for a column
+	 * of populationSize cells of which the cells added so far are a random sample
+	 */
+	public boolean isSettled(int populationSize) {
+		if (total >= populationSize)
+			return true;
+		if (total < MIN_SAMPLE || z == Double.POSITIVE_INFINITY)
+			return false;
+		int most = -1;
+		int second = -1;
+		int numTypes = 0;
+		int numeric = 0;
+		for (DataType t : TYPES) {
+			int c = counts[t.ordinal()];
+			if (t == DataType.NONE || c == 0)
+				continue;
+			numTypes++;
+			if (t.Specificity >= DataType.DOUBLE.Specificity)
+				numeric += c;
+			if (c > most) {
+				second = most;
+				most = c;
+			} else if (c > second) {
+				second = c;
+			}
+		}
+		if (numTypes == 0)
+			return false;
+		double m = total;
+		double fpc = (populationSize - m) / (populationSize - 1.0);
+		double p1 = most / m;
+		double p2 = Math.max(second, 0) / m;
+		double lead = p1 - p2;
+		double leadError = z
+				* Math.sqrt(Math.max(p1 + p2 - lead * lead, 0) / m * fpc);
+		if (lead - leadError > Types.TYPE_MAJORITY_THRESHOLD)
+			return true;
+		if (lead + leadError > Types.TYPE_MAJORITY_THRESHOLD)
+			return false;
+		double share = numeric / m;
+		double shareError = z * Math.sqrt(share * (1 - share) / m * fpc);
+		// a single cell of a less specific numeric type than seen so far would change the type
+		if (share - shareError > Types.NUMERIC_SHARE_THRESHOLD)
+			return leastSpecificNumeric() == DataType.DOUBLE;
+		return numTypes > 1
+				&& share + shareError <= Types.NUMERIC_SHARE_THRESHOLD;
+	}
+
+	/* the type of the whole column */
+	public DataType columnType(String[] column) {
+		return columnType(column, 0, column.length);
+	}
+
+	/* the type of the cells column[from, to), sampled until the decision is settled */
+	public DataType columnType(String[] column, int from, int to) {
+		reset();
+		int n = to - from;
+		if (n <= MIN_SAMPLE || z == Double.POSITIVE_INFINITY) {
+			for (int i = from; i < to; i++)
+				add(column[i]);
+			return result();
+		}
+		// a step coprime to n visits every cell once, in an order unrelated to the row order
+		int step = (int) (n * 0.6180339887) | 1;
+		while (gcd(step, n) != 1)
+			step += 2;
+		int i = 0;
+		for (int k = 1; k <= n; k++) {
+			add(column[from + i]);
+			i = (int) ((i + (long) step) % n);
+			if (k % CHECK_INTERVAL == 0 && isSettled(n))
+				break;
+		}
+		return result();
+	}
+
+	private static int gcd(int a, int b) {
+		while (b != 0) {
+			int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	/* the two-sided z-score of a confidence level, by Acklam's approximation of the normal quantile */
+	static double zScore(double confidence) {
+		double tail = (1 - confidence) / 2;
+		if (tail < 0.02425) {
+			double q = Math.sqrt(-2 * Math.log(tail));
+			return -(((((-7.784894002430293e-03 * q - 3.223964580411365e-01)
+					* q - 2.400758277161838e+00)
+					* q - 2.549732539343734e+00)
+					* q + 4.374664141464968e+00) * q + 2.938163982698783e+00)
+					/ ((((7.784695709041462e-03 * q + 3.224671290700398e-01)
+							* q + 2.445134137142996e+00)
+							* q + 3.754408661907416e+00) * q + 1);
+		}
+		double q = 0.5 - tail;
+		double r = q * q;
+		return (((((-3.969683028665376e+01 * r + 2.209460984245205e+02) * r - 2.759285104469687e+02)
+				* r + 1.383577518672690e+02)
+				* r - 3.066479806614716e+01) * r + 2.506628277459239e+00)
+				* q
+				/ (((((-5.447609879822406e+01 * r + 1.615858368580409e+02) * r - 1.556989798598866e+02)
+						* r + 6.680131188771972e+01)
+						* r - 1.328068155288572e+01) * r + 1);
+	}
+
+}
@@ -4,6 +4,7 @@ import java.util.Map;
 
 import com.google.common.collect.ImmutableMap;
 
+/* stored by DatasetCodec by Name, with the codes of its COLUMN_TYPES, new types need to be appended there */
 public enum DataType {
 	NONE(-1, "None"), STRING(0, "String"), EMAIL(1, "Email"), URL(2, "URL"), DATETIME(
 			3, "Datetime"), DOUBLE(4, "Double"), LONG(6, "Long"), INTEGER(7,
@@ -19,7 +20,9 @@ public enum DataType {
 
 	private static Map<String, DataType> typeNameMap = ImmutableMap
 			.<String, DataType> builder().put("None", DataType.NONE)
-			.put("String", DataType.STRING).put("Double", DataType.DOUBLE)
+			.put("String", DataType.STRING).put("Email", DataType.EMAIL)
+			.put("URL", DataType.URL).put("Datetime", DataType.DATETIME)
+			.put("Double", DataType.DOUBLE)
 			.put("Long", DataType.LONG).put("Integer", DataType.INTEGER)
 			.put("Currency", DataType.CURRENCY).build();
 
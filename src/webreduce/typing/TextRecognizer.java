@@ -0,0 +1,477 @@
+package webreduce.typing;
+
+/*
+ * Hand-written scanners for the text types of a cell: e-mail addresses, URLs
+ * and dates (optionally with a time) in the formats common on the web, e.g.
+ *
+ *   2014-05-12, 2014-05-12T10:30:00Z, 2014/5/12, 12.05.2014, 05/12/14, 12-May-2014, 12 May 2014,
+ *   12th May, May 12, 2014, Monday, May 12th 2014 10:30 pm, Mon, 12 May 2014 10:30:00 GMT, May 2014,
+ *   2014-05, 10:30 am
+ *
+ * The scanners are meant to run on every cell, so each makes a single pass without allocating and
+ * gives up at the first character that cannot belong to its type. Surrounding whitespace is
+ * ignored, anything else has to be part of the recognized value. Month and day names are English.
+ * A time of day alone is only a date with am/pm ('12:30 pm'), 24-hour times ('14:00', '12:30') stay
+ * strings as they are too easily scores or durations, and dates with dots need a four-digit year,
+ * others are too easily version numbers (1.5.10).
+ */
+final class TextRecognizer {
+
+	private static final String[] MONTHS = { "january", "february", "march",
+			"april", "may", "june", "july", "august", "september", "october",
+			"november", "december" };
+	private static final String[] WEEKDAYS = { "monday", "tuesday",
+			"wednesday", "thursday", "friday", "saturday", "sunday" };
+	private static final String EMAIL_LOCAL_SYMBOLS = "!#$%&'*+/=?^_`{|}~.-";
+
+	private TextRecognizer() {
+	}
+
+	/* the type of s, hasDigit and hasAt tell whether s contains a digit and an '@' */
+	static DataType typeOf(String s, boolean hasDigit, boolean hasAt) {
+		int p = 0;
+		int e = s.length();
+		while (p < e && isBlank(s.charAt(p)))
+			p++;
+		while (e > p && isBlank(s.charAt(e - 1)))
+			e--;
+		if (p == e)
+			return DataType.STRING;
+		if (hasAt && isEmail(s, p, e))
+			return DataType.EMAIL;
+		if (isUrl(s, p, e))
+			return DataType.URL;
+		if (hasDigit && isDatetime(s, p, e))
+			return DataType.DATETIME;
+		return DataType.STRING;
+	}
+
+	/* local@domain.tld, optionally prefixed with mailto: */
+	static boolean isEmail(String s, int p, int e) {
+		if (startsWithIgnoreCase(s, p, e, "mailto:"))
+			p += 7;
+		int at = p;
+		char last = '.';
+		while (at < e && s.charAt(at) != '@') {
+			char c = s.charAt(at);
+			if (!isAsciiLetterOrDigit(c) && EMAIL_LOCAL_SYMBOLS.indexOf(c) < 0)
+				return false;
+			// no leading, trailing or consecutive dots
+			if (c == '.' && last == '.')
+				return false;
+			last = c;
+			at++;
+		}
+		if (at == p || at == e || last == '.' || at - p > 64)
+			return false;
+		return isDomain(s, at + 1, e, false) == e;
+	}
+
+	/*
+	 * the end of a domain name of letters, digits and hyphens starting at p, -1 if there is none.
+	 * It needs at least two labels and a top-level label of letters, unless single labels are
+	 * allowed.
+	 */
+	private static int isDomain(String s, int p, int e, boolean singleLabel) {
+		int labels = 0;
+		boolean topLevelLetters = false;
+		while (true) {
+			int start = p;
+			boolean letters = true;
+			while (p < e
+					&& (isLetterOrDigit(s.charAt(p)) || s.charAt(p) == '-')) {
+				if (!Character.isLetter(s.charAt(p)))
+					letters = false;
+				p++;
+			}
+			if (p == start || s.charAt(start) == '-'
+					|| s.charAt(p - 1) == '-')
+				return -1;
+			labels++;
+			topLevelLetters = letters && p - start >= 2;
+			if (p < e && s.charAt(p) == '.' && p + 1 < e
+					&& isLetterOrDigit(s.charAt(p + 1))) {
+				p++;
+				continue;
+			}
+			break;
+		}
+		if (singleLabel ? labels >= 1 : labels >= 2 && topLevelLetters)
+			return p;
+		return -1;
+	}
+
+	/* http(s):// or ftp:// and a host, or www. and a domain, then an optional port and path */
+	static boolean isUrl(String s, int p, int e) {
+		boolean scheme;
+		if (startsWithIgnoreCase(s, p, e, "http://")) {
+			p += 7;
+			scheme = true;
+		} else if (startsWithIgnoreCase(s, p, e, "https://")) {
+			p += 8;
+			scheme = true;
+		} else if (startsWithIgnoreCase(s, p, e, "ftp://")) {
+			p += 6;
+			scheme = true;
+		} else if (startsWithIgnoreCase(s, p, e, "www.")) {
+			// www. and a domain of its own
+			if (isDomain(s, p + 4, e, false) < 0)
+				return false;
+			scheme = false;
+		} else {
+			return false;
+		}
+		p = isDomain(s, p, e, scheme);
+		if (p < 0)
+			return false;
+		if (p < e && s.charAt(p) == ':') {
+			int port = digitsEnd(s, p + 1, e);
+			if (port == p + 1)
+				return false;
+			p = port;
+		}
+		if (p < e && s.charAt(p) != '/' && s.charAt(p) != '?'
+				&& s.charAt(p) != '#')
+			return false;
+		for (; p < e; p++) {
+			if (Character.isWhitespace(s.charAt(p)))
+				return false;
+		}
+		return true;
+	}
+
+	/* [weekday] date [time [zone]], or a time with am/pm alone */
+	static boolean isDatetime(String s, int p, int e) {
+		int start = weekday(s, p, e);
+		int d = date(s, start, e);
+		if (d < 0) {
+			if (start != p)
+				return false;
+			int t = time(s, p, e, true);
+			return t >= 0 && zone(s, t, e) == e;
+		}
+		if (d == e)
+			return true;
+		int t;
+		if (s.charAt(d) == 'T') {
+			t = time(s, d + 1, e, false);
+		} else {
+			int q = d;
+			if (s.charAt(q) == ',')
+				q++;
+			q = skipSpaces(s, q, e);
+			if (q == d)
+				return false;
+			if (startsWithIgnoreCase(s, q, e, "at "))
+				q = skipSpaces(s, q + 3, e);
+			t = time(s, q, e, false);
+		}
+		return t >= 0 && zone(s, t, e) == e;
+	}
+
+	/* the position after a leading day name with its punctuation and spaces, p if there is none */
+	private static int weekday(String s, int p, int e) {
+		int q = lettersEnd(s, p, e);
+		if (q - p < 3 || !isName(s, p, q, WEEKDAYS))
+			return p;
+		if (q < e && s.charAt(q) == '.')
+			q++;
+		if (q < e && s.charAt(q) == ',')
+			q++;
+		int r = skipSpaces(s, q, e);
+		return r > q ? r : p;
+	}
+
+	/* the end of a date starting at p, -1 if there is none */
+	private static int date(String s, int p, int e) {
+		if (p == e)
+			return -1;
+		if (isLetter(s.charAt(p)))
+			return monthFirstDate(s, p, e);
+		int q = digitsEnd(s, p, e);
+		int digits = q - p;
+		if (digits == 0 || digits > 4 || q == e)
+			return -1;
+		int first = value(s, p, q);
+		char sep = s.charAt(q);
+		if (digits == 4) {
+			// year first, ISO and the like
+			if (sep != '-' && sep != '/' && sep != '.')
+				return -1;
+			int r = digitsEnd(s, q + 1, e);
+			if (r - q - 1 < 1 || r - q - 1 > 2 || !isMonth(value(s, q + 1, r)))
+				return -1;
+			if (r < e && s.charAt(r) == sep) {
+				int t = digitsEnd(s, r + 1, e);
+				if (t - r - 1 < 1 || t - r - 1 > 2 || !isDay(value(s, r + 1, t)))
+					return -1;
+				return t;
+			}
+			// year and month only, as in 2014-05
+			return sep == '-' && r - q - 1 == 2 && !isDigit(s, r, e) ? r : -1;
+		}
+		if (digits > 2 || first < 1 || first > 31)
+			return -1;
+		if (sep == '-' || sep == '/' || sep == '.') {
+			if (q + 1 < e && isLetter(s.charAt(q + 1))) {
+				// 12-May-2014
+				int m = monthEnd(s, q + 1, e);
+				if (m < 0 || m == e || s.charAt(m) != sep)
+					return -1;
+				return year(s, m + 1, e, true);
+			}
+			int r = digitsEnd(s, q + 1, e);
+			if (r - q - 1 < 1 || r - q - 1 > 2 || r == e || s.charAt(r) != sep)
+				return -1;
+			int second = value(s, q + 1, r);
+			// day and month in either order
+			if (second < 1 || second > 31 || (first > 12 && second > 12))
+				return -1;
+			// with dots, only a full year tells a date from a version number such as 1.5.10
+			return year(s, r + 1, e, sep != '.');
+		}
+		// 12 May 2014, 12th May, 12. May 2014
+		int r = ordinalSuffixEnd(s, q, e);
+		if (r == q && s.charAt(r) == '.')
+			r++;
+		int m = skipSpaces(s, r, e);
+		if (m == r)
+			return -1;
+		m = monthEnd(s, m, e);
+		if (m < 0)
+			return -1;
+		return optionalYear(s, m, e);
+	}
+
+	/* May 12, 2014, May 12th 2014, May 12, May 2014, May, 2014 */
+	private static int monthFirstDate(String s, int p, int e) {
+		int m = monthEnd(s, p, e);
+		if (m < 0 || m == e)
+			return -1;
+		int q = m;
+		if (s.charAt(q) == ',')
+			q++;
+		int r = skipSpaces(s, q, e);
+		if (r == q)
+			return -1;
+		int d = digitsEnd(s, r, e);
+		if (d - r == 4)
+			return isDigit(s, d, e) ? -1 : d;
+		if (q != m || d - r < 1 || d - r > 2 || !isDay(value(s, r, d)))
+			return -1;
+		return optionalYear(s, ordinalSuffixEnd(s, d, e), e);
+	}
+
+	/* the end of an optional ", 2014" or " 2014" at p */
+	private static int optionalYear(String s, int p, int e) {
+		int q = p;
+		if (q < e && s.charAt(q) == ',')
+			q++;
+		int r = skipSpaces(s, q, e);
+		if (r == q)
+			return p;
+		int y = digitsEnd(s, r, e);
+		if (y - r == 4 && !isDigit(s, y, e))
+			return y;
+		return p;
+	}
+
+	/* the end of a year of 4 (or 2, if allowed) digits at p, -1 if there is none */
+	private static int year(String s, int p, int e, boolean twoDigits) {
+		int y = digitsEnd(s, p, e);
+		if (y - p == 4 || (twoDigits && y - p == 2))
+			return y;
+		return -1;
+	}
+
+	/* the end of a month name or abbreviation (with an optional dot) at p, -1 if there is none */
+	private static int monthEnd(String s, int p, int e) {
+		int q = lettersEnd(s, p, e);
+		if (q - p < 3 || !isName(s, p, q, MONTHS))
+			return -1;
+		if (q < e && s.charAt(q) == '.')
+			q++;
+		return q;
+	}
+
+	/* true if s[p, q) is one of the names, or its first three (or "sept", "tues", "thur", "thurs") */
+	private static boolean isName(String s, int p, int q, String[] names) {
+		int length = q - p;
+		for (String name : names) {
+			if (length > name.length())
+				continue;
+			if (length != name.length() && length != 3 && !isAbbreviation(name, length))
+				continue;
+			int i = 0;
+			while (i < length
+					&& Character.toLowerCase(s.charAt(p + i)) == name.charAt(i))
+				i++;
+			if (i == length)
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isAbbreviation(String name, int length) {
+		if (length == 4)
+			return name.equals("september") || name.equals("tuesday")
+					|| name.equals("thursday");
+		return length == 5 && name.equals("thursday");
+	}
+
+	/* hh:mm[:ss[.fff]] [am|pm], the am/pm is required if the time stands alone */
+	private static int time(String s, int p, int e, boolean alone) {
+		int h = digitsEnd(s, p, e);
+		if (h - p < 1 || h - p > 2 || h == e || s.charAt(h) != ':')
+			return -1;
+		int hour = value(s, p, h);
+		int m = digitsEnd(s, h + 1, e);
+		if (m - h - 1 != 2 || value(s, h + 1, m) > 59)
+			return -1;
+		int q = m;
+		if (q < e && s.charAt(q) == ':') {
+			int sec = digitsEnd(s, q + 1, e);
+			if (sec - q - 1 != 2 || value(s, q + 1, sec) > 60)
+				return -1;
+			q = sec;
+			if (q < e && s.charAt(q) == '.') {
+				int frac = digitsEnd(s, q + 1, e);
+				if (frac == q + 1)
+					return -1;
+				q = frac;
+			}
+		}
+		int r = skipSpaces(s, q, e);
+		int ampm = ampmEnd(s, r, e);
+		if (ampm >= 0)
+			return hour >= 1 && hour <= 12 ? ampm : -1;
+		return !alone && hour <= 23 ? q : -1;
+	}
+
+	/* the end of am, pm, a.m. or p.m. at p (in any case), -1 if there is none */
+	private static int ampmEnd(String s, int p, int e) {
+		if (p == e)
+			return -1;
+		char c = Character.toLowerCase(s.charAt(p));
+		if (c != 'a' && c != 'p')
+			return -1;
+		int q = p + 1;
+		if (q < e && s.charAt(q) == '.')
+			q++;
+		if (q == e || Character.toLowerCase(s.charAt(q)) != 'm')
+			return -1;
+		q++;
+		if (q < e && s.charAt(q) == '.' && s.charAt(q - 2) == '.')
+			q++;
+		return q < e && isLetter(s.charAt(q)) ? -1 : q;
+	}
+
+	/* the end of an optional time zone at p: Z, +hh[:mm], GMT, UTC[+hh], EST and the like */
+	private static int zone(String s, int p, int e) {
+		if (p == e)
+			return p;
+		if (s.charAt(p) == 'Z')
+			return p + 1;
+		int q = skipSpaces(s, p, e);
+		int letters = upperCaseEnd(s, q, e);
+		if (letters - q >= 3 && letters - q <= 4) {
+			q = letters;
+			if (q == e)
+				return q;
+		} else if (letters != q) {
+			return p;
+		}
+		if (q < e && (s.charAt(q) == '+' || s.charAt(q) == '-')) {
+			int h = digitsEnd(s, q + 1, e);
+			if (h - q - 1 == 4)
+				return h;
+			if (h - q - 1 != 2)
+				return p;
+			if (h < e && s.charAt(h) == ':') {
+				int m = digitsEnd(s, h + 1, e);
+				return m - h - 1 == 2 ? m : p;
+			}
+			return h;
+		}
+		return q;
+	}
+
+	private static int ordinalSuffixEnd(String s, int p, int e) {
+		if (p + 2 > e)
+			return p;
+		char a = Character.toLowerCase(s.charAt(p));
+		char b = Character.toLowerCase(s.charAt(p + 1));
+		if ((a == 's' && b == 't') || (a == 'n' && b == 'd')
+				|| (a == 'r' && b == 'd') || (a == 't' && b == 'h'))
+			return p + 2 < e && isLetter(s.charAt(p + 2)) ? p : p + 2;
+		return p;
+	}
+
+	private static boolean isMonth(int month) {
+		return month >= 1 && month <= 12;
+	}
+
+	private static boolean isDay(int day) {
+		return day >= 1 && day <= 31;
+	}
+
+	private static int digitsEnd(String s, int p, int e) {
+		while (p < e && s.charAt(p) >= '0' && s.charAt(p) <= '9')
+			p++;
+		return p;
+	}
+
+	private static int lettersEnd(String s, int p, int e) {
+		while (p < e && isLetter(s.charAt(p)))
+			p++;
+		return p;
+	}
+
+	private static int upperCaseEnd(String s, int p, int e) {
+		while (p < e && s.charAt(p) >= 'A' && s.charAt(p) <= 'Z')
+			p++;
+		return p;
+	}
+
+	private static int skipSpaces(String s, int p, int e) {
+		while (p < e && isBlank(s.charAt(p)))
+			p++;
+		return p;
+	}
+
+	/* the value of the (at most 4) digits s[p, q) */
+	private static int value(String s, int p, int q) {
+		int v = 0;
+		for (int i = p; i < q; i++)
+			v = v * 10 + s.charAt(i) - '0';
+		return v;
+	}
+
+	private static boolean isDigit(String s, int p, int e) {
+		return p < e && s.charAt(p) >= '0' && s.charAt(p) <= '9';
+	}
+
+	private static boolean startsWithIgnoreCase(String s, int p, int e,
+			String prefix) {
+		return e - p >= prefix.length()
+				&& s.regionMatches(true, p, prefix, 0, prefix.length());
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isAsciiLetterOrDigit(char c) {
+		return isLetter(c) || (c >= '0' && c <= '9');
+	}
+
+	/* in domain names, which may be internationalized */
+	private static boolean isLetterOrDigit(char c) {
+		return c < 0x80 ? isAsciiLetterOrDigit(c) : Character.isLetterOrDigit(c);
+	}
+
+	private static boolean isBlank(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\u00a0';
+	}
+
+}
@@ -1,30 +1,36 @@
 package webreduce.typing;
 
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.google.common.collect.Lists;
-
 /* Heuristics for typing table columns (e.g. recognizing numeric columns) */
 public class Types {
 
 	static double TYPE_MAJORITY_THRESHOLD = 0.40;
 	static double NUMERIC_PERCENTAGE = 0.6;
+	// share of numeric cells above which a column without a clear majority type is numeric
+	static double NUMERIC_SHARE_THRESHOLD = 0.9;
 
+	// the currency symbols are escaped, so that the patterns don't depend on the source encoding
 	static Pattern isCurrency = Pattern
-			.compile("-?\\s*([$£₤]\\s*[\\d,]+(\\.\\d+)?)|([\\d,]+(\\.\\d+)?\\s*[€])");
+			.compile("-?\\s*([$\u00a3\u20a4]\\s*[\\d,]+(\\.\\d+)?)|([\\d,]+(\\.\\d+)?\\s*[\u20ac])");
 	static Pattern isInt = Pattern
 			.compile("(^|[^\\d])-?[\\d,]{1,9}(\\s)?(%)?($|[^\\d])");
 	static Pattern isLong = Pattern.compile("-?[\\d,]+");
 	static Pattern isDouble = Pattern.compile("-?[\\d,]+\\.\\d+(\\s)?(%)?");
 
-	static DataType typeOf(String s) {
+	/* the type of a single cell, see CellClassifier */
+	public static DataType typeOf(String s) {
+		return CellClassifier.typeOf(s);
+	}
+
+	/*
+	 * the original, regular expression based version of typeOf, which returns the same numeric types
+	 * but knows nothing of e-mail addresses, URLs and dates
+	 */
+	public static DataType typeOfRegex(String s) {
 		Matcher m;
 		double size = s.length();
 		if (s.equals(""))
@@ -56,64 +62,19 @@ public class Types {
 		return result;
 	}
 
+	/* the type of a column, tall columns are sampled (see ColumnTyper) */
 	static public DataType columnType(String[] column) {
-		Map<DataType, Integer> typeCounts = typeCounts(column);
-		typeCounts.remove(DataType.NONE);
-		if (typeCounts.size() == 1)
-			return typeCounts.keySet().iterator().next();
-		else if (typeCounts.size() == 0)
-			return DataType.NONE;
-
-		List<Entry<DataType, Integer>> counts = Lists.newArrayList(typeCounts
-				.entrySet());
-		Collections.sort(counts, new Comparator<Entry<DataType, Integer>>() {
-			@Override
-			public int compare(Entry<DataType, Integer> o1,
-					Entry<DataType, Integer> o2) {
-				return Integer.valueOf(o1.getValue()).compareTo(
-						Integer.valueOf(o2.getValue()));
-			}
-		});
-
-		Entry<DataType, Integer> mostFrequent = counts.get(counts.size() - 1);
-		Entry<DataType, Integer> secondMostFrequent = counts
-				.get(counts.size() - 2);
-		float mostFrequentPercentage = mostFrequent.getValue()
-				/ (float) column.length;
-		float secondMostFrequentPercentage = secondMostFrequent.getValue()
-				/ (float) column.length;
-		if (mostFrequentPercentage - secondMostFrequentPercentage > TYPE_MAJORITY_THRESHOLD)
-			return mostFrequent.getKey();
+		return new ColumnTyper().columnType(column);
+	}
 
-		int countNumeric = 0;
-		for (Entry<DataType, Integer> e : counts) {
-			if (e.getKey().Specificity >= DataType.DOUBLE.Specificity)
-				countNumeric += e.getValue();
-		}
-		if ((countNumeric / (float) column.length) > 0.9) {
-			// sort by specificity
-			Collections.sort(counts,
-					new Comparator<Entry<DataType, Integer>>() {
-						@Override
-						public int compare(Entry<DataType, Integer> o1,
-								Entry<DataType, Integer> o2) {
-							return Integer
-									.valueOf(o1.getKey().Specificity)
-									.compareTo(
-											Integer.valueOf(o2.getKey().Specificity));
-						}
-					});
-			for (Entry<DataType, Integer> e : counts) {
-				if (e.getKey().Specificity >= DataType.DOUBLE.Specificity)
-					return e.getKey();
-			}
-		}
-		return DataType.STRING;
+	/* the type of the cells column[from, to) */
+	static public DataType columnType(String[] column, int from, int to) {
+		return new ColumnTyper().columnType(column, from, to);
 	}
 
 	public static void main(String[] args) {
 		System.out.println(columnType(new String[] { "0.043", "123124124",
-				"21343124124124€", "2131233213123123" }));
+				"21343124124124\u20ac", "2131233213123123" }));
 		System.out.println(columnType(new String[] { "324", "123124124",
 				"21343", "213123434313123123" }));
 		System.out.println(typeCounts(new String[] { "324", "123124124",